@@ -0,0 +1,247 @@
+package knit.cli;
+
+import knit.mapping.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MappingTool {
+    private static final int BATCH_SIZE = 64;
+
+    private static final String DEFAULT_OBFUSCATED_NAMESPACE = "official";
+    private static final String DEFAULT_NAMED_NAMESPACE = "named";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && (args[0].equals("export") || args[0].equals("import"))) {
+            if (args.length != 4 && args.length != 6) {
+                usage();
+            }
+
+            String obfuscatedNamespace = args.length == 6 ? args[4] : DEFAULT_OBFUSCATED_NAMESPACE;
+            String namedNamespace = args.length == 6 ? args[5] : DEFAULT_NAMED_NAMESPACE;
+
+            if (args[0].equals("export")) {
+                export(new File(args[1]), new File(args[2]), args[3], obfuscatedNamespace, namedNamespace);
+            } else {
+                importMappings(new File(args[1]), new File(args[2]), args[3], obfuscatedNamespace, namedNamespace);
+            }
+
+            return;
+        }
+
+        if (args.length != 2 && !(args.length == 3 && args[0].equals("normalize") && args[2].equals("--check"))) {
+            usage();
+            return;
+        }
+
+        File directory = new File(args[1]);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        try {
+            switch (args[0]) {
+                case "validate": {
+                    Map<String, ClassMapping> classes = read(directory, executor);
+                    System.out.println(classes.size() + " mapping files are valid");
+                    break;
+                }
+
+                case "normalize": {
+                    boolean check = args.length == 3;
+                    List<String> changed = normalize(directory, read(directory, executor), check, executor);
+                    changed.forEach(name -> System.out.println((check ? "not normalized: " : "normalized: ") + name));
+                    System.out.println(changed.size() + " mapping files " + (check ? "need normalizing" : "rewritten"));
+
+                    if (check && !changed.isEmpty()) {
+                        System.exit(1);
+                    }
+
+                    break;
+                }
+
+                default: {
+                    usage();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: MappingTool validate <directory>");
+        System.err.println("       MappingTool normalize <directory> [--check]");
+        System.err.println("       MappingTool export <directory> <file> tiny|tsrg|proguard [<obfuscated namespace> <named namespace>]");
+        System.err.println("       MappingTool import <file> <directory> tiny|tsrg|enigma [<obfuscated namespace> <named namespace>]");
+        System.exit(2);
+    }
+
+    private static void export(File directory, File file, String format, String obfuscatedNamespace, String namedNamespace) throws IOException {
+        try {
+            try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                switch (format) {
+                    case "tiny": {
+                        MappingSerializer.read(directory.toPath(), new TinyV2Writer(writer, obfuscatedNamespace, namedNamespace));
+                        break;
+                    }
+
+                    case "tsrg": {
+                        MappingSerializer.read(directory.toPath(), new TsrgWriter(writer, obfuscatedNamespace, namedNamespace));
+                        break;
+                    }
+
+                    case "proguard": {
+                        ProguardWriter.ClassNameCollector classNames = new ProguardWriter.ClassNameCollector();
+                        MappingSerializer.read(directory.toPath(), classNames);
+                        MappingSerializer.read(directory.toPath(), new ProguardWriter(writer, classNames.classNames));
+                        break;
+                    }
+
+                    default: {
+                        usage();
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (MappingSerializer.MappingFormatException e) {
+            System.err.println(e.file + (e.line == -1 ? "" : ":" + e.line) + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void importMappings(File file, File directory, String format, String obfuscatedNamespace, String namedNamespace) throws IOException {
+        Set<ClassMapping> classes;
+        List<String> skippedFields = new ArrayList<>();
+        try {
+            if (format.equals("enigma")) {
+                ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+                try {
+                    classes = MappingSerializer.readSingleFile(file.toPath(), executor);
+                } finally {
+                    executor.shutdown();
+                }
+            } else {
+                classes = readFormat(file, format, obfuscatedNamespace, namedNamespace, skippedFields);
+            }
+        } catch (MappingSerializer.MappingFormatException e) {
+            List<Throwable> errors = new ArrayList<>();
+            errors.add(e);
+            errors.addAll(Arrays.asList(e.getSuppressed()));
+            errors.forEach(error -> System.err.println(file + ": " + error.getMessage()));
+            System.exit(1);
+            return;
+        } catch (TreeSerializer.ParseException e) {
+            System.err.println(file + ":" + e.line + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        for (ClassMapping clazz : classes) {
+            MappingSerializer.writeClass(new File(directory, clazz.getName() + ".mapping"), clazz);
+        }
+
+        if (!skippedFields.isEmpty()) {
+            System.err.println(skippedFields.size() + " fields without descriptors can't be written to mapping files and were skipped");
+        }
+
+        System.out.println(classes.size() + " classes imported");
+    }
+
+    private static Set<ClassMapping> readFormat(File file, String format, String obfuscatedNamespace, String namedNamespace, List<String> skippedFields) throws TreeSerializer.ParseException, IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            switch (format) {
+                case "tiny": return TinyV2Reader.read(reader, obfuscatedNamespace, namedNamespace);
+                case "tsrg": return TsrgReader.read(reader, obfuscatedNamespace, namedNamespace, skippedFields);
+                default: {
+                    usage();
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static Map<String, ClassMapping> read(File directory, ExecutorService executor) throws IOException {
+        try {
+            return MappingSerializer.readByName(directory, executor);
+        } catch (MappingSerializer.MappingFormatException e) {
+            List<Throwable> errors = new ArrayList<>();
+            errors.add(e);
+            errors.addAll(Arrays.asList(e.getSuppressed()));
+
+            for (Throwable error : errors) {
+                MappingSerializer.MappingFormatException formatError = (MappingSerializer.MappingFormatException) error;
+                System.err.println(formatError.file + (formatError.line == -1 ? "" : ":" + formatError.line) + ": " + formatError.getMessage());
+            }
+
+            System.err.println(errors.size() + " mapping files are invalid");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static List<String> normalize(File directory, Map<String, ClassMapping> classes, boolean check, ExecutorService executor) {
+        List<Map.Entry<String, ClassMapping>> entries = new ArrayList<>(classes.entrySet());
+        ConcurrentLinkedQueue<String> changed = new ConcurrentLinkedQueue<>();
+        Set<Path> emptiedDirectories = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int start = 0; start < entries.size(); start += BATCH_SIZE) {
+            List<Map.Entry<String, ClassMapping>> batch = entries.subList(start, Math.min(start + BATCH_SIZE, entries.size()));
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (Map.Entry<String, ClassMapping> entry : batch) {
+                    File file = new File(directory, entry.getKey() + ".mapping");
+                    byte[] serializedClass = MappingSerializer.serializeClass(entry.getValue());
+
+                    try {
+                        if (check ? !isSame(file, serializedClass) : MappingSerializer.writeClass(file, serializedClass)) {
+                            changed.add(entry.getKey());
+                            if (!check && serializedClass == null) {
+                                emptiedDirectories.add(file.toPath().getParent());
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, executor));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        List<Path> directories = new ArrayList<>(emptiedDirectories);
+        directories.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path emptiedDirectory : directories) {
+            try {
+                MappingSerializer.deleteEmptyDirectories(directory.toPath(), emptiedDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        List<String> sorted = new ArrayList<>(changed);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    private static boolean isSame(File file, byte[] serializedClass) throws IOException {
+        return serializedClass != null && file.length() == serializedClass.length && Arrays.equals(Files.readAllBytes(file.toPath()), serializedClass);
+    }
+}
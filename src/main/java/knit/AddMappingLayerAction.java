@@ -0,0 +1,28 @@
+package knit;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptor;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+public class AddMappingLayerAction extends AnAction {
+    private static final FileChooserDescriptor CHOOSE_FOLDER_DESCRIPTOR = new FileChooserDescriptor(false, true, true, true, false, false);
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabled(e.getProject() != null && MappingService.getInstance(e.getProject()).hasMappings());
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        VirtualFile virtualFile = FileChooser.chooseFile(CHOOSE_FOLDER_DESCRIPTOR, null, null);
+
+        if (virtualFile != null) {
+            MappingService.getInstance(e.getProject()).addMappingLayer(new File(virtualFile.getPath()));
+        }
+    }
+}
@@ -10,7 +10,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 
 public class EnableRemappingAction extends ToggleAction {
-    private static final FileChooserDescriptor CHOOSE_FOLDER_DESCRIPTOR = new FileChooserDescriptor(false, true, false, false, false, false);
+    private static final FileChooserDescriptor CHOOSE_FOLDER_DESCRIPTOR = new FileChooserDescriptor(false, true, true, true, false, false);
 
     @Override
     public boolean isSelected(@NotNull AnActionEvent e) {
@@ -2,9 +2,12 @@ package knit;
 
 import com.intellij.ide.ApplicationInitializedListener;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.project.ProjectManagerListener;
+import com.intellij.openapi.startup.StartupManager;
+import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.refactoring.listeners.RefactoringEventListener;
 import org.jetbrains.annotations.NotNull;
 
@@ -24,6 +27,21 @@ public class KnitApplicationInitializedListener implements ApplicationInitialize
                                         RefactoringEventListener.REFACTORING_EVENT_TOPIC,
                                         new ParameterRefactoringEventListener(new RemappingRefactoringListenerProvider())
                                 );
+
+                        project.getMessageBus()
+                                .connect()
+                                .subscribe(VirtualFileManager.VFS_CHANGES, new MappingFileListener(project));
+
+                        project.getMessageBus()
+                                .connect()
+                                .subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new MappingPrefetcher(project));
+
+                        StartupManager.getInstance(project).runWhenProjectIsInitialized(() -> MappingService.getInstance(project).restoreMappings());
+                    }
+
+                    @Override
+                    public void projectClosing(@NotNull Project project) {
+                        MappingService.getInstance(project).flush();
                     }
                 });
     }
@@ -0,0 +1,68 @@
+package knit;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import knit.mapping.MappingSerializer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class MappingFileListener implements BulkFileListener {
+    private final Project project;
+
+    public MappingFileListener(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public void after(@NotNull List<? extends VFileEvent> events) {
+        MappingService mappingService = MappingService.getInstance(project);
+        File mappingDirectory = mappingService.getMappingDirectory();
+
+        if (mappingDirectory == null) {
+            return;
+        }
+
+        Path directory = mappingDirectory.toPath().toAbsolutePath();
+        Set<String> changedPaths = new LinkedHashSet<>();
+
+        for (VFileEvent event : events) {
+            addChangedPath(changedPaths, directory, event.getPath());
+
+            if (event instanceof VFileMoveEvent) {
+                addChangedPath(changedPaths, directory, ((VFileMoveEvent) event).getOldPath());
+            } else if (event instanceof VFilePropertyChangeEvent && VirtualFile.PROP_NAME.equals(((VFilePropertyChangeEvent) event).getPropertyName())) {
+                addChangedPath(changedPaths, directory, ((VFilePropertyChangeEvent) event).getOldPath());
+            }
+        }
+
+        if (!changedPaths.isEmpty()) {
+            mappingService.reloadMappings(changedPaths);
+        }
+    }
+
+    // Files map to their mapping name, directories to a prefix ending in '/'
+    private static void addChangedPath(Set<String> changedPaths, Path directory, String path) {
+        Path file = Paths.get(path);
+
+        if (!file.startsWith(directory)) {
+            return;
+        }
+
+        if (path.endsWith(".mapping")) {
+            changedPaths.add(MappingSerializer.getMappingName(directory, file));
+        } else {
+            String prefix = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            changedPaths.add(prefix.isEmpty() ? "" : prefix + "/");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package knit;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class MappingPrefetcher implements FileEditorManagerListener {
+    private final Project project;
+
+    public MappingPrefetcher(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+        MappingService mappingService = MappingService.getInstance(project);
+        if (!mappingService.hasMappings()) {
+            return;
+        }
+
+        ReadAction.nonBlocking(() -> getReferencedMappingNames(file))
+                  .inSmartMode(project)
+                  .expireWith(project)
+                  .submit(AppExecutorUtil.getAppExecutorService())
+                  .onSuccess(mappingNames -> ApplicationManager.getApplication().executeOnPooledThread(() -> mappingService.prefetchMappings(mappingNames)));
+    }
+
+    // The file's own classes and the top-level classes of its type references, expressions aren't resolved
+    private Set<String> getReferencedMappingNames(VirtualFile file) {
+        Set<String> mappingNames = new LinkedHashSet<>();
+        PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+
+        if (!(psiFile instanceof PsiJavaFile) || !psiFile.isWritable()) {
+            return mappingNames;
+        }
+
+        MappingService mappingService = MappingService.getInstance(project);
+        for (PsiClass clazz : ((PsiJavaFile) psiFile).getClasses()) {
+            addMappingName(mappingNames, mappingService, clazz);
+        }
+
+        psiFile.accept(new JavaRecursiveElementWalkingVisitor() {
+            @Override
+            public void visitReferenceElement(PsiJavaCodeReferenceElement reference) {
+                super.visitReferenceElement(reference);
+
+                if (!(reference instanceof PsiReferenceExpression)) {
+                    PsiElement resolved = reference.resolve();
+                    if (resolved instanceof PsiClass && !(resolved instanceof PsiTypeParameter)) {
+                        PsiClass topmostClass = PsiTreeUtil.getTopmostParentOfType(resolved, PsiClass.class);
+                        addMappingName(mappingNames, mappingService, topmostClass == null ? (PsiClass) resolved : topmostClass);
+                    }
+                }
+            }
+        });
+
+        return mappingNames;
+    }
+
+    private static void addMappingName(Set<String> mappingNames, MappingService mappingService, PsiClass clazz) {
+        String qualifiedName = clazz.getQualifiedName();
+        if (qualifiedName != null) {
+            mappingNames.add(mappingService.getMappingName(qualifiedName));
+        }
+    }
+}
@@ -1,71 +1,870 @@
 package knit;
 
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.ide.util.JavaAnonymousClassesHelper;
 import com.intellij.lang.jvm.JvmModifier;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.PersistentStateComponent;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.openapi.components.StoragePathMacros;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
 import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.Alarm;
+import com.intellij.util.PathUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
 import knit.mapping.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.concurrency.CancellablePromise;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.Map;
-
-public class MappingService {
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+@State(name = "KnitMappings", storages = @Storage(StoragePathMacros.WORKSPACE_FILE))
+public class MappingService implements PersistentStateComponent<MappingService.State> {
+    private static final Logger LOG = Logger.getInstance(MappingService.class);
     private static final String NO_PACKAGE_PACKAGE = "nopackage";
+    private static final int SAVE_DELAY = 2000;
+    private static final int MAPPING_CACHE_WEIGHT = Integer.getInteger("knit.mappingCacheWeight", 100000); // classes and loaded members
+
+    private final Project project;
+    private volatile MappingStore mappingStore = null;
+    private List<File> mappingLayers = Collections.emptyList();
+    // Weak keys, reparsed files get new elements and the replaced ones must not be kept alive.
+    // Lookups are lock-free, everything else in the service is guarded by the service's monitor.
+    private final Map<PsiClass, ClassMapping> classMappings = ContainerUtil.createConcurrentWeakMap();
+    private final Map<PsiField, FieldMapping> fieldMappings = ContainerUtil.createConcurrentWeakMap();
+    private final Map<PsiMethod, MethodMapping> methodMappings = ContainerUtil.createConcurrentWeakMap();
+    private final Map<PsiParameter, LocalVariableMapping> parameterMappings = ContainerUtil.createConcurrentWeakMap();
+    private final Map<String, ClassMapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> missingMappingNames = new HashSet<>(); // not in the store when last prefetched
+    // Recorded by lock-free lookups, moved to the recent end of mappings before evicting
+    private final Set<ClassMapping> recentlyUsedMappings = ContainerUtil.newConcurrentSet();
+    private CompactMappingSet preloadedMappings = null;
+    private ClassNameTable classNameTable = null;
+    private final Set<ClassMapping> renamedMappings = new HashSet<>();
+    private final Map<ClassMapping, String> mappingNames = new HashMap<>();
+    private final Set<ClassMapping> dirtyMappings = new LinkedHashSet<>();
+    private final Map<Object, Set<ClassMapping>> pinnedMappings = new WeakHashMap<>();
+    private final Alarm saveAlarm;
+    private final ExecutorService writeExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Knit Mapping Writer", 1);
+    private volatile Future<?> lastWrite = CompletableFuture.completedFuture(null);
+    private final Map<ClassMapping, Future<?>> pendingWrites = new HashMap<>(); // not evicted until written, reading them back would be stale
+    private volatile long mappingWeight = 0; // as of the last eviction
+    private final Set<ClassMapping> failedWrites = new HashSet<>(); // only used on the writer thread
+    private final ExecutorService attachExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Knit Mapping Attacher", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private volatile ProgressIndicator attachIndicator = null;
+    private final StringBuilder descriptorBuilder = new StringBuilder();
+    private final List<String> readErrors = new ArrayList<>();
+    private final Map<PsiClass, String> classDescriptors = ContainerUtil.createWeakMap();
+    private long descriptorModificationCount = -1;
+    private MappingJournal journal = null;
+    private LocalFileSystem.WatchRequest watchRequest = null;
+    private List<String> restoredLayers = Collections.emptyList(); // saved as the state until they are loaded or replaced
+    private int loadGeneration = 0; // a background load only opens its store if the mappings weren't closed meanwhile
+
+    public MappingService(Project project) {
+        this.project = project;
+        saveAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, project);
+    }
+
+    @Override
+    public State getState() {
+        State state = new State();
+        if (!restoredLayers.isEmpty()) {
+            state.mappingLayers.addAll(restoredLayers);
+            return state;
+        }
+
+        for (File layer : mappingLayers) {
+            state.mappingLayers.add(layer.getAbsolutePath());
+        }
+
+        return state;
+    }
+
+    @Override
+    public void loadState(@NotNull State state) {
+        restoredLayers = new ArrayList<>(state.mappingLayers);
+    }
+
+    // Reopens the mappings of the last session, the snapshot and background attaching warm up the caches
+    public void restoreMappings() {
+        if (restoredLayers.isEmpty() || hasMappings()) {
+            return;
+        }
+
+        List<File> layers = new ArrayList<>();
+        for (String layer : restoredLayers) {
+            File file = new File(layer);
+            if (!file.exists()) {
+                LOG.info("Not restoring mappings because " + file + " no longer exists");
+                return;
+            }
+
+            layers.add(file);
+        }
+
+        loadMappings(layers);
+        DaemonCodeAnalyzer.getInstance(project).restart();
+    }
+
+    public void loadMappings(File mappingLocation) {
+        loadMappings(Collections.singletonList(mappingLocation));
+    }
+
+    public void addMappingLayer(File mappingLocation) {
+        List<File> layers = new ArrayList<>(mappingLayers);
+        layers.add(mappingLocation);
+        loadMappings(layers);
+    }
+
+    // Later layers override earlier ones and edits go to the last one
+    public void loadMappings(List<File> mappingLocations) {
+        closeMappings();
+
+        List<MappingStore> layers = new ArrayList<>();
+        String storePath;
+        try {
+            storePath = getStorePath(mappingLocations);
+            for (File mappingLocation : mappingLocations) {
+                layers.add(mappingLocation.isDirectory() ? new DirectoryMappingStore(mappingLocation) : new ArchiveMappingStore(mappingLocation));
+            }
+
+        } catch (IOException e) {
+            closeLayers(layers, e);
+            return;
+        }
+
+        if (layers.size() == 1) {
+            openStore(layers.get(0), mappingLocations, storePath);
+            return;
+        }
+
+        // Indexing reads the header of every file in every layer, the mappings stay off until it's done
+        int generation = loadGeneration;
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Indexing mapping layers", false) {
+            private final List<MappingSerializer.MappingFormatException> errors = new ArrayList<>();
+            private LayeredMappingStore store = null;
+            private IOException exception = null;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                try {
+                    store = new LayeredMappingStore(layers, AppExecutorUtil.getAppExecutorService(), errors);
+                } catch (MappingSerializer.MappingFormatException e) {
+                    exception = new IOException(e.toString(), e);
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+
+            @Override
+            public void onSuccess() {
+                if (exception != null || generation != loadGeneration || project.isDisposed()) {
+                    closeLayers(layers, exception);
+                    return;
+                }
+
+                errors.forEach(MappingService.this::reportReadError);
+                openStore(store, mappingLocations, storePath);
+                DaemonCodeAnalyzer.getInstance(project).restart();
+            }
+        });
+    }
+
+    // Shows exception if there is one, a superseded load closes its layers quietly
+    private static void closeLayers(List<MappingStore> layers, IOException exception) {
+        for (MappingStore layer : layers) {
+            try {
+                layer.close();
+            } catch (IOException closeException) {
+                if (exception == null) {
+                    LOG.warn(closeException);
+                } else {
+                    exception.addSuppressed(closeException);
+                }
+            }
+        }
+
+        if (exception != null) {
+            Messages.showErrorDialog(exception.getMessage(), "Failed to Open Mappings");
+        }
+    }
+
+    private void openStore(MappingStore store, List<File> mappingLocations, String storePath) {
+        mappingStore = store;
+        mappingLayers = new ArrayList<>(mappingLocations);
+        restoredLayers = Collections.emptyList();
+
+        if (!mappingStore.isReadOnly()) {
+            replayJournal(storePath);
+        }
+
+        if (mappingStore instanceof DirectoryMappingStore) {
+            watchMappingDirectory(((DirectoryMappingStore) mappingStore).getDirectory());
+        }
+
+        loadSnapshot(mappingStore, storePath);
+    }
+
+    private static String getStorePath(List<File> mappingLocations) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (File mappingLocation : mappingLocations) {
+            paths.add(mappingLocation.getCanonicalPath());
+        }
+
+        return String.join(File.pathSeparator, paths);
+    }
+
+    private void watchMappingDirectory(File directory) {
+        watchRequest = LocalFileSystem.getInstance().addRootToWatch(directory.getAbsolutePath(), true);
+
+        // VFS only reports changes to files it has loaded
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            VirtualFile root = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(directory);
+            if (root != null) {
+                VfsUtilCore.visitChildrenRecursively(root, new VirtualFileVisitor<Void>() {});
+            }
+        });
+    }
+
+    public List<File> getMappingLayers() {
+        return Collections.unmodifiableList(mappingLayers);
+    }
+
+    public File getMappingDirectory() {
+        return mappingStore instanceof DirectoryMappingStore ? ((DirectoryMappingStore) mappingStore).getDirectory() : null;
+    }
+
+    public void reloadMappings(Collection<String> changedPaths) {
+        MappingStore store = mappingStore;
+        File directory = getMappingDirectory();
+        Map<String, ClassMapping> changedMappings = new HashMap<>();
+        Map<String, byte[]> serializedMappings = new HashMap<>();
+        Map<String, ClassMapping> removedPreloadedMappings;
+
+        synchronized (this) {
+            removedPreloadedMappings = preloadedMappings == null ?
+                    Collections.emptyMap() :
+                    preloadedMappings.removeIf(mappingName -> isChanged(changedPaths, mappingName));
+
+            mappingNames.forEach((mapping, mappingName) -> {
+                if (isChanged(changedPaths, mappingName)) {
+                    if (dirtyMappings.contains(mapping)) {
+                        LOG.info("Not reloading " + mappingName + " because it has unsaved changes");
+                    } else {
+                        changedMappings.put(mappingName, mapping);
+                        serializedMappings.put(mappingName, MappingSerializer.serializeClass(mapping));
+                    }
+                }
+            });
+        }
+
+        Future<?> pendingWrite = lastWrite;
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                pendingWrite.get(); // compare against what we last saved, not a half-written queue
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOG.warn(e);
+            }
+
+            Set<String> changedNames = new LinkedHashSet<>(changedMappings.keySet());
+            changedNames.addAll(removedPreloadedMappings.keySet());
+            for (String changedPath : changedPaths) {
+                if (!changedPath.isEmpty() && !changedPath.endsWith("/")) {
+                    changedNames.add(changedPath);
+                } else if (directory != null) {
+                    Path changedDirectory = directory.toPath().resolve(changedPath);
+                    try (Stream<Path> files = Files.isDirectory(changedDirectory) ? Files.walk(changedDirectory) : Stream.empty()) {
+                        files.filter(file -> file.toString().endsWith(".mapping"))
+                             .forEach(file -> changedNames.add(MappingSerializer.getMappingName(directory.toPath(), file)));
+                    } catch (IOException | UncheckedIOException e) {
+                        LOG.warn("Failed to list " + changedDirectory, e);
+                    }
+                }
+            }
+
+            Map<String, ClassMapping> storedMappings = new HashMap<>();
+            for (String mappingName : changedNames) {
+                try {
+                    ClassMapping storedMapping = store.read(mappingName);
+                    if (storedMapping != null) {
+                        storedMappings.put(mappingName, storedMapping);
+                    }
+                } catch (MappingSerializer.MappingFormatException | IOException e) {
+                    LOG.info("Failed to read changed mapping " + mappingName + ": " + e);
+                }
+            }
+
+            List<ClassMapping> staleMappings = new ArrayList<>();
+            changedMappings.forEach((mappingName, mapping) -> {
+                ClassMapping storedMapping = storedMappings.get(mappingName);
+                byte[] serializedMapping = storedMapping == null ? null : MappingSerializer.serializeClass(storedMapping);
+
+                if (!Arrays.equals(serializedMapping, serializedMappings.get(mappingName))) { // not our own write or an unchanged checkout
+                    staleMappings.add(mapping);
+                }
+            });
+
+            ApplicationManager.getApplication().invokeLater(() -> {
+                synchronized (this) {
+                    if (store != mappingStore) {
+                        return;
+                    }
+
+                    staleMappings.removeIf(mapping -> dirtyMappings.contains(mapping) || !mappingNames.containsKey(mapping));
+                    dropMappings(staleMappings, true);
+                    missingMappingNames.clear(); // files may have been added
+
+                    classDescriptors.clear();
+                    if (classNameTable != null) {
+                        removedPreloadedMappings.values().forEach(classNameTable::remove);
+                        staleMappings.forEach(classNameTable::remove);
+                        storedMappings.values().forEach(classNameTable::put);
+
+                        // Loaded mappings with unsaved changes win over what's on disk
+                        mappingNames.forEach((mapping, mappingName) -> {
+                            if (storedMappings.containsKey(mappingName)) {
+                                classNameTable.put(mapping);
+                            }
+                        });
+                    }
+                }
+            }, project.getDisposed());
+        });
+    }
+
+    private static boolean isChanged(Collection<String> changedPaths, String mappingName) {
+        for (String changedPath : changedPaths) {
+            if (mappingName.equals(changedPath) || (changedPath.isEmpty() || changedPath.endsWith("/")) && mappingName.startsWith(changedPath)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private synchronized void dropMappings(Collection<ClassMapping> rootMappings, boolean restartHighlighting) {
+        if (rootMappings.isEmpty()) {
+            return;
+        }
+
+        Set<Object> entries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ClassMapping rootMapping : rootMappings) {
+            new MappingVisitor() {
+                @Override
+                public void visit(ClassMapping clazz) {
+                    entries.add(clazz);
+                    super.visit(clazz);
+                }
+
+                @Override
+                public void visit(FieldMapping field) {
+                    entries.add(field);
+                }
+
+                @Override
+                public void visit(MethodMapping method) {
+                    entries.add(method);
+                    super.visit(method);
+                }
+
+                @Override
+                public void visit(LocalVariableMapping localVariable) {
+                    entries.add(localVariable);
+                }
+            }.visit(rootMapping);
+        }
+
+        Set<PsiFile> files = new HashSet<>();
+        classMappings.entrySet().removeIf(entry -> {
+            if (entries.contains(entry.getValue())) {
+                PsiFile file = restartHighlighting && entry.getKey().isValid() ? entry.getKey().getContainingFile() : null;
+                if (file != null) {
+                    files.add(file);
+                }
+
+                return true;
+            }
+
+            return false;
+        });
+        fieldMappings.values().removeIf(entries::contains);
+        methodMappings.values().removeIf(entries::contains);
+        parameterMappings.values().removeIf(entries::contains);
+        mappings.values().removeIf(entries::contains);
+        mappingNames.keySet().removeIf(entries::contains);
+        recentlyUsedMappings.removeIf(entries::contains);
+
+        FileEditorManager fileEditorManager = FileEditorManager.getInstance(project);
+        DaemonCodeAnalyzer daemonCodeAnalyzer = DaemonCodeAnalyzer.getInstance(project);
+        for (PsiFile file : files) {
+            if (file.isValid() && file.getVirtualFile() != null && fileEditorManager.isFileOpen(file.getVirtualFile())) {
+                daemonCodeAnalyzer.restart(file);
+            }
+        }
+    }
+
+    // Least recently used first, weighed by their loaded members; dirty, pinned and saving mappings stay
+    private synchronized void evictMappings() {
+        for (Iterator<ClassMapping> iterator = recentlyUsedMappings.iterator(); iterator.hasNext(); ) {
+            String mappingName = mappingNames.get(iterator.next());
+            iterator.remove();
+            if (mappingName != null) {
+                mappings.get(mappingName);
+            }
+        }
+
+        long weight = 0;
+        for (ClassMapping mapping : mappings.values()) {
+            weight += mapping.getLoadedSize();
+        }
+
+        mappingWeight = weight;
+        if (weight <= MAPPING_CACHE_WEIGHT) {
+            return;
+        }
+
+        Set<ClassMapping> pinned = new HashSet<>();
+        pinnedMappings.values().forEach(pinned::addAll);
+        pendingWrites.values().removeIf(Future::isDone);
 
-    private File mappingDirectory = null;
-    private final Map<PsiClass, ClassMapping> classMappings = new HashMap<>();
-    private final Map<PsiField, FieldMapping> fieldMappings = new HashMap<>();
-    private final Map<PsiMethod, MethodMapping> methodMappings = new HashMap<>();
-    private final Map<PsiParameter, LocalVariableMapping> parameterMappings = new HashMap<>();
-    private final Map<String, ClassMapping> mappings = new HashMap<>();
-    private final Map<ClassMapping, File> mappingFiles = new HashMap<>();
+        List<ClassMapping> evictedMappings = new ArrayList<>();
+        for (ClassMapping mapping : mappings.values()) {
+            if (weight <= MAPPING_CACHE_WEIGHT * 3 / 4) { // evict in batches, dropping scans all attached elements
+                break;
+            }
+
+            if (!dirtyMappings.contains(mapping) && !pinned.contains(mapping) && !pendingWrites.containsKey(mapping)) {
+                evictedMappings.add(mapping);
+                weight -= mapping.getLoadedSize();
+            }
+        }
 
-    public void loadMappings(File mappingDirectory) {
-        clearMappings();
-        this.mappingDirectory = mappingDirectory;
+        mappingWeight = weight;
+        dropMappings(evictedMappings, false);
+    }
+
+    // Keeps the root of an element cached while owner is reachable, for refactoring listeners that change it later or on undo
+    public synchronized void pinMapping(Object owner, PsiElement element) {
+        PsiClass rootClass = getRootClass(element);
+        if (rootClass != null) {
+            pinnedMappings.computeIfAbsent(owner, k -> new HashSet<>()).add(getMapping(rootClass));
+        }
+    }
+
+    private synchronized void replayJournal(String storePath) {
+        try {
+            journal = new MappingJournal(getCacheFile(storePath, "journal"), storePath);
+            Map<String, ClassMapping> replayedMappings = new HashMap<>();
+
+            for (MappingJournal.Entry entry : journal.read()) {
+                ClassMapping mapping = replayedMappings.get(entry.mappingName);
+                if (mapping == null) {
+                    mapping = getMapping(entry.mappingName, false);
+                }
+
+                entry.apply(mapping);
+                replayedMappings.put(getMappingName(mapping.getName().replace('/', '.')), mapping);
+                dirtyMappings.add(mapping);
+
+                if (entry.targetsClass()) {
+                    markRenamed(mapping);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to replay mapping journal of " + mappingStore, e);
+        }
+
+        if (!dirtyMappings.isEmpty()) {
+            saveAlarm.addRequest(this::saveMappings, SAVE_DELAY);
+        }
+    }
+
+    private void loadSnapshot(MappingStore store, String storePath) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            CompactMappingSet classes;
+            try {
+                File snapshotFile = getCacheFile(storePath, "snapshot");
+                long fingerprint = store.fingerprint();
+                classes = MappingSnapshot.read(snapshotFile, storePath, fingerprint);
+
+                if (classes == null) {
+                    List<MappingSerializer.MappingFormatException> errors = new ArrayList<>();
+                    classes = CompactMappingSet.of(store.readAll(AppExecutorUtil.getAppExecutorService(), errors));
+
+                    // Broken files are read and reported again when used, so only save complete snapshots
+                    if (errors.isEmpty()) {
+                        MappingSnapshot.write(snapshotFile, storePath, fingerprint, classes);
+                    } else {
+                        for (MappingSerializer.MappingFormatException error : errors) {
+                            LOG.warn("Skipped malformed mapping file while preloading " + store + ": " + error);
+                        }
+                    }
+                }
+            } catch (MappingSerializer.MappingFormatException | IOException e) {
+                LOG.warn("Failed to load snapshot of " + store, e);
+                return;
+            }
+
+            CompactMappingSet loadedClasses = classes;
+            ClassNameTable loadedClassNames = ClassNameTable.of(classes);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                synchronized (this) {
+                    if (store != mappingStore) {
+                        return;
+                    }
+
+                    preloadedMappings = loadedClasses;
+                    classNameTable = loadedClassNames;
+                    classDescriptors.clear();
+                    renamedMappings.forEach(classNameTable::put);
+                    renamedMappings.clear();
+                }
+
+                attachInBackground(store);
+            }, project.getDisposed());
+        });
+    }
+
+    // Started once preloaded, so attaching doesn't read every file from the store
+    private void attachInBackground(MappingStore store) {
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Attaching mappings", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                attachIndicator = indicator;
+                indicator.setIndeterminate(false);
+
+                List<VirtualFile> files = new ArrayList<>();
+                ProjectFileIndex fileIndex = ProjectFileIndex.SERVICE.getInstance(project);
+                ReadAction.run(() -> fileIndex.iterateContent(file -> {
+                    if (file.getFileType() == JavaFileType.INSTANCE && fileIndex.isInSourceContent(file) && file.isWritable()) {
+                        files.add(file);
+                    }
+
+                    return !indicator.isCanceled();
+                }));
+
+                List<CancellablePromise<?>> attachments = new ArrayList<>();
+                try {
+                    for (VirtualFile file : files) {
+                        attachments.add(ReadAction.nonBlocking(() -> attachFileMappings(store, file, indicator))
+                                                  .expireWith(project)
+                                                  .submit(attachExecutor));
+                    }
+
+                    for (int i = 0; i < attachments.size() && mappingWeight < MAPPING_CACHE_WEIGHT; i++) { // more would only be evicted again
+                        awaitAttachment(attachments.get(i), indicator);
+                        indicator.setFraction((i + 1) / (double) attachments.size());
+                    }
+                } finally {
+                    attachments.forEach(CancellablePromise::cancel);
+                }
+            }
+        });
+    }
+
+    private Void attachFileMappings(MappingStore store, VirtualFile file, ProgressIndicator indicator) {
+        indicator.checkCanceled();
+        PsiFile psiFile = store == mappingStore && file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+
+        if (psiFile instanceof PsiJavaFile) {
+            for (PsiClass clazz : ((PsiJavaFile) psiFile).getClasses()) {
+                if (!classMappings.containsKey(clazz)) {
+                    attachMappings(clazz);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static void awaitAttachment(CancellablePromise<?> attachment, ProgressIndicator indicator) {
+        while (true) {
+            indicator.checkCanceled();
+            try {
+                attachment.blockingGet(100, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // check for cancellation again
+            } catch (ExecutionException | CancellationException e) {
+                LOG.info("Failed to attach mappings in the background: " + e);
+                return;
+            }
+        }
     }
 
     public void clearMappings() {
-        mappingDirectory = null;
+        restoredLayers = Collections.emptyList();
+        closeMappings();
+    }
+
+    private void closeMappings() {
+        loadGeneration++;
+
+        ProgressIndicator indicator = attachIndicator;
+        if (indicator != null) {
+            indicator.cancel();
+        }
+
+        flush();
+
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+
+            if (mappingStore != null) {
+                mappingStore.close();
+            }
+        } catch (IOException e) {
+            LOG.warn(e);
+        }
+
+        if (watchRequest != null) {
+            LocalFileSystem.getInstance().removeWatchedRoot(watchRequest);
+        }
+
+        journal = null;
+        mappingStore = null;
+        mappingLayers = Collections.emptyList();
+        watchRequest = null;
         clearCache();
     }
 
-    public void clearCache() {
+    public synchronized void clearCache() {
         classMappings.clear();
         fieldMappings.clear();
         methodMappings.clear();
         parameterMappings.clear();
         mappings.clear();
-        mappingFiles.clear();
+        preloadedMappings = null;
+        classNameTable = null;
+        classDescriptors.clear();
+        renamedMappings.clear();
+        mappingNames.clear();
+        dirtyMappings.clear();
+        missingMappingNames.clear();
+        recentlyUsedMappings.clear();
+        pinnedMappings.clear();
+        pendingWrites.clear();
+        mappingWeight = 0;
+        lastWrite = writeExecutor.submit(failedWrites::clear);
     }
 
     public boolean hasMappings() {
-        return mappingDirectory != null;
+        return mappingStore != null;
     }
 
-    public void markChanged(PsiElement element) {
-        PsiClass rootClass = getRootClass(element);
-        ClassMapping mapping = getMapping(rootClass);
+    public synchronized void markChanged(PsiElement element) {
+        ClassMapping rootMapping = getMapping(getRootClass(element));
+        appendToJournal(rootMapping, element);
+        dirtyMappings.add(rootMapping);
 
-        File file = mappingFiles.get(mapping);
-        if (file != null) {
-            file.delete();
+        if (element instanceof PsiClass) {
+            markRenamed(rootMapping);
         }
 
-        File mappingFile = getMappingFile(mapping.name.replace('/', '.'));
-        mappingFiles.put(mapping, mappingFile);
+        saveAlarm.cancelAllRequests();
+        saveAlarm.addRequest(this::saveMappings, SAVE_DELAY);
+    }
+
+    private void markRenamed(ClassMapping rootMapping) {
+        classDescriptors.clear();
+        if (classNameTable != null) {
+            classNameTable.put(rootMapping);
+        } else {
+            renamedMappings.add(rootMapping);
+        }
+    }
+
+    private void appendToJournal(ClassMapping rootMapping, PsiElement element) {
+        String mappingName = mappingNames.get(rootMapping);
+        if (journal == null || mappingName == null) {
+            return;
+        }
+
+        List<String> path = new ArrayList<>();
+        String name;
+        List<CommentLine> comments;
+
+        if (element instanceof PsiParameter) {
+            PsiMethod method = (PsiMethod) ((PsiParameter) element).getDeclarationScope();
+            LocalVariableMapping mapping = getMapping((PsiParameter) element);
+            addJournalPath(path, method.getContainingClass());
+            path.add(MappingJournal.methodStep(getMapping(method)));
+            path.add(MappingJournal.localVariableStep(mapping));
+            name = mapping.getName();
+            comments = mapping.comments;
+        } else if (element instanceof PsiMethod) {
+            MethodMapping mapping = getMapping((PsiMethod) element);
+            addJournalPath(path, ((PsiMethod) element).getContainingClass());
+            path.add(MappingJournal.methodStep(mapping));
+            name = mapping.getName();
+            comments = mapping.comments;
+        } else if (element instanceof PsiField) {
+            FieldMapping mapping = getMapping((PsiField) element);
+            addJournalPath(path, ((PsiField) element).getContainingClass());
+            path.add(MappingJournal.fieldStep(mapping));
+            name = mapping.getName();
+            comments = mapping.comments;
+        } else if (element instanceof PsiClass) {
+            ClassMapping mapping = getMapping((PsiClass) element);
+            addJournalPath(path, (PsiClass) element);
+            name = mapping.getName();
+            comments = mapping.comments;
+        } else {
+            return;
+        }
+
+        List<String> commentStrings = new ArrayList<>();
+        for (CommentLine comment : comments) {
+            commentStrings.add(comment.comment);
+        }
 
         try {
-            MappingSerializer.writeClass(mappingFile, mapping);
+            journal.append(new MappingJournal.Entry(mappingName, path, name, commentStrings));
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOG.warn("Failed to append to mapping journal", e);
+        }
+    }
+
+    private void addJournalPath(List<String> path, PsiClass clazz) {
+        PsiClass containingClass = PsiTreeUtil.getParentOfType(clazz, PsiClass.class);
+
+        if (containingClass != null) {
+            addJournalPath(path, containingClass);
+            path.add(MappingJournal.classStep(getMapping(clazz)));
+        }
+    }
+
+    public synchronized void saveMappings() {
+        saveAlarm.cancelAllRequests();
+
+        if (dirtyMappings.isEmpty()) {
+            return;
+        }
+
+        if (mappingStore.isReadOnly()) { // kept dirty so they aren't evicted or reloaded
+            return;
+        }
+
+        MappingStore store = mappingStore;
+        for (ClassMapping mapping : dirtyMappings) {
+            String oldMappingName = mappingNames.get(mapping);
+            String mappingName = getMappingName(mapping.getName().replace('/', '.'));
+            byte[] serializedMapping = MappingSerializer.serializeClass(mapping);
+            setMappingName(mapping, oldMappingName, mappingName);
+
+            if (preloadedMappings != null) {
+                preloadedMappings.remove(mappingName); // stale once saved, in case the mapping is evicted and read again
+
+                if (oldMappingName != null && !oldMappingName.equals(mappingName)) {
+                    preloadedMappings.remove(oldMappingName);
+                }
+            }
+
+            lastWrite = writeExecutor.submit(() -> {
+                try {
+                    if (oldMappingName != null && !oldMappingName.equals(mappingName)) {
+                        store.write(oldMappingName, null);
+                    }
+
+                    store.write(mappingName, serializedMapping);
+                    failedWrites.remove(mapping);
+                } catch (IOException e) {
+                    failedWrites.add(mapping);
+                    LOG.error("Failed to write " + mappingName + " to " + store, e);
+                    ApplicationManager.getApplication().invokeLater(() -> markUnsaved(store, mapping, oldMappingName, mappingName), project.getDisposed());
+                }
+            });
+            pendingWrites.put(mapping, lastWrite);
+        }
+
+        dirtyMappings.clear();
+
+        if (journal != null) {
+            MappingJournal savedJournal = journal;
+            try {
+                long journalPosition = savedJournal.size();
+                lastWrite = writeExecutor.submit(() -> {
+                    if (failedWrites.isEmpty()) { // the journal still holds the only copy of those edits
+                        try {
+                            savedJournal.compact(journalPosition);
+                        } catch (IOException e) {
+                            LOG.warn("Failed to compact mapping journal", e);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                LOG.warn("Failed to compact mapping journal", e);
+            }
+        }
+    }
+
+    // Saved again with the next save, under the old name so a rename deletes the old file again
+    private synchronized void markUnsaved(MappingStore store, ClassMapping mapping, String oldMappingName, String mappingName) {
+        if (store == mappingStore && mappingName.equals(mappingNames.get(mapping))) {
+            if (oldMappingName != null) {
+                setMappingName(mapping, mappingName, oldMappingName);
+            }
+
+            dirtyMappings.add(mapping);
+        }
+    }
+
+    private void setMappingName(ClassMapping mapping, String oldMappingName, String mappingName) {
+        mappingNames.put(mapping, mappingName);
+        missingMappingNames.remove(mappingName);
+        if (oldMappingName != null && !oldMappingName.equals(mappingName) && mappings.get(oldMappingName) == mapping) {
+            mappings.remove(oldMappingName);
+            mappings.put(mappingName, mapping);
+        }
+    }
+
+    public void flush() {
+        saveMappings();
+
+        try {
+            lastWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error(e);
         }
     }
 
@@ -77,106 +876,281 @@ public class MappingService {
         return name.replace('.', '/');
     }
 
+    // Reads the mappings that aren't loaded or preloaded yet in one batch on the calling thread
+    public void prefetchMappings(Collection<String> referencedNames) {
+        MappingStore store = mappingStore;
+        List<String> missingNames = new ArrayList<>();
+
+        synchronized (this) {
+            for (String mappingName : referencedNames) {
+                if (!mappings.containsKey(mappingName) && !missingMappingNames.contains(mappingName) && (preloadedMappings == null || !preloadedMappings.contains(mappingName))) {
+                    missingNames.add(mappingName);
+                }
+            }
+        }
+
+        if (store == null || missingNames.isEmpty()) {
+            return;
+        }
+
+        try {
+            lastWrite.get(); // don't read files that are about to be replaced
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            LOG.warn(e);
+        }
+
+        Map<String, ClassMapping> loadedMappings;
+        List<MappingSerializer.MappingFormatException> errors = new ArrayList<>();
+        try {
+            loadedMappings = store.read(missingNames, AppExecutorUtil.getAppExecutorService(), errors);
+        } catch (IOException e) {
+            LOG.info("Failed to prefetch mappings: " + e); // reported when they're actually used
+            return;
+        }
+
+        errors.forEach(error -> LOG.info("Failed to prefetch mapping " + error.file + ": " + error.getMessage()));
+
+        synchronized (this) {
+            if (store != mappingStore) {
+                return;
+            }
+
+            // Keyed by current mapping names, setMappingName re-keys renamed roots
+            loadedMappings.forEach((mappingName, mapping) -> {
+                if (mapping == null) {
+                    missingMappingNames.add(mappingName); // mostly library classes, which are referenced everywhere
+                } else if (!mappings.containsKey(mappingName)) {
+                    mappings.put(mappingName, mapping);
+                    mappingNames.put(mapping, mappingName);
+                }
+            });
+
+            evictMappings();
+        }
+    }
+
+    // PSI is walked and resolved before taking the service lock, which is only held to look up and create the mappings
+    // Publishing only uses cached mappings, the missing ones are read and loaded outside the lock first
     public void attachMappings(PsiElement element) {
-        new JavaRecursiveElementVisitor() {
-            final Deque<ClassData> classes = new ArrayDeque<>();
+        ClassAttachment attachment = resolveAttachment(getRootClass(element));
 
-            @Override
-            public void visitClass(PsiClass clazz) {
-                ClassMapping classMapping;
-                if (classes.isEmpty()) {
-                    classMapping = getMapping(getMappingName(clazz.getQualifiedName()));
-                } else {
-                    ClassData containingClassData = classes.peek();
-                    String name = getClassName(clazz);
-                    classMapping = containingClassData.nestedClasses.get(name);
+        while (true) {
+            MappingStore store;
+            Map<String, Boolean> missingMappings = new LinkedHashMap<>();
+            List<ClassMapping> unloadedMappings = new ArrayList<>();
 
-                    if (classMapping == null) {
-                        classMapping = new ClassMapping(name, name);
-                        containingClassData.mapping.nestedClasses.add(classMapping);
-                    }
+            synchronized (this) {
+                store = mappingStore;
+                collectMissingMappings(attachment, true, missingMappings, unloadedMappings);
+
+                if (store == null || missingMappings.isEmpty() && unloadedMappings.isEmpty()) {
+                    publishAttachment(attachment, null);
+                    evictMappings();
+                    return;
                 }
+            }
 
-                classMappings.putIfAbsent(clazz, classMapping);
-                ClassData classData = new ClassData(clazz, classMapping);
+            unloadedMappings.forEach(ClassMapping::loadMembers);
+            Map<String, ClassMapping> newMappings = readMappings(store, missingMappings);
 
-                classMapping.nestedClasses.forEach(nestedClass -> classData.nestedClasses.putIfAbsent(nestedClass.name, nestedClass));
-                classMapping.methods.forEach(method -> classData.methods.putIfAbsent(method.name + " " + method.obfuscatedDescriptor, method));
-                classMapping.fields.forEach(field -> classData.fields.putIfAbsent(field.name + " " + field.obfuscatedDescriptor, field));
+            synchronized (this) {
+                if (store == mappingStore) { // evicted again before publishing only if other threads attach a lot meanwhile
+                    newMappings.forEach((mappingName, mapping) -> {
+                        if (!mappings.containsKey(mappingName)) {
+                            mappings.put(mappingName, mapping);
+                            mappingNames.put(mapping, mappingName);
+                        }
+                    });
+                }
+            }
+        }
+    }
 
-                classes.push(classData);
-                super.visitClass(clazz);
-                classes.pop();
+    // Values are whether the members are needed too, nested classes in descriptors are looked up in them
+    private void collectMissingMappings(ClassAttachment attachment, boolean root, Map<String, Boolean> missingMappings, List<ClassMapping> unloadedMappings) {
+        if (root) {
+            collectMissingMapping(attachment.name, true, missingMappings, unloadedMappings);
+        }
+
+        if (classNameTable == null) {
+            for (MethodAttachment method : attachment.methods) {
+                collectMissingMappings(method.descriptor, missingMappings, unloadedMappings);
             }
 
-            @Override
-            public void visitMethod(PsiMethod method) {
-                ClassData containingClassData = classes.peek();
-                String obfuscatedDescriptor = getObfuscatedDescriptor(method);
-                String methodName = method.isConstructor() ? "<init>" : method.getName();
-                MethodMapping methodMapping = containingClassData.methods.get(methodName + " " + obfuscatedDescriptor);
+            for (FieldAttachment field : attachment.fields) {
+                collectMissingMappings(field.descriptor, missingMappings, unloadedMappings);
+            }
+        }
+
+        for (ClassAttachment nestedClass : attachment.nestedClasses) {
+            collectMissingMappings(nestedClass, false, missingMappings, unloadedMappings);
+        }
+    }
 
-                if (methodMapping == null) {
-                    methodMapping = new MethodMapping(methodName, obfuscatedDescriptor, methodName);
-                    containingClassData.mapping.methods.add(methodMapping);
+    private void collectMissingMappings(List<Object> resolvedDescriptor, Map<String, Boolean> missingMappings, List<ClassMapping> unloadedMappings) {
+        boolean cached = descriptorModificationCount == PsiModificationTracker.SERVICE.getInstance(project).getJavaStructureModificationCount();
+        for (Object part : resolvedDescriptor) {
+            if (part instanceof ClassReference && !(cached && classDescriptors.containsKey(((ClassReference) part).clazz))) {
+                ClassReference reference = (ClassReference) part;
+                collectMissingMapping(reference.mappingName, !reference.nestedClassPath.isEmpty(), missingMappings, unloadedMappings);
+            }
+        }
+    }
+
+    private void collectMissingMapping(String mappingName, boolean withMembers, Map<String, Boolean> missingMappings, List<ClassMapping> unloadedMappings) {
+        ClassMapping mapping = mappings.get(mappingName);
+        if (mapping != null) {
+            if (withMembers && !mapping.hasLoadedMembers()) {
+                unloadedMappings.add(mapping);
+            }
+        } else if (preloadedMappings == null || !preloadedMappings.contains(getMappingName(mappingName))) {
+            missingMappings.merge(mappingName, withMembers, Boolean::logicalOr);
+        }
+    }
+
+    // Same results as getMapping(String, boolean), without holding the lock
+    private Map<String, ClassMapping> readMappings(MappingStore store, Map<String, Boolean> mappingNames) {
+        Map<String, ClassMapping> readMappings = new HashMap<>();
+        mappingNames.forEach((mappingName, withMembers) -> {
+            ClassMapping mapping;
+            try {
+                mapping = withMembers ? store.read(getMappingName(mappingName)) : store.readHeader(getMappingName(mappingName), this::reportReadError);
+            } catch (MappingSerializer.MappingFormatException e) {
+                reportReadError(e);
+                mapping = null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            readMappings.put(mappingName, mapping == null ? new ClassMapping(mappingName, mappingName) : mapping);
+        });
+
+        return readMappings;
+    }
+
+    private ClassAttachment resolveAttachment(PsiClass rootClass) {
+        ClassAttachment rootAttachment = new ClassAttachment(rootClass, getMappingName(rootClass.getQualifiedName()));
+
+        new JavaRecursiveElementVisitor() {
+            final Deque<ClassAttachment> classes = new ArrayDeque<>();
+
+            @Override
+            public void visitClass(PsiClass clazz) {
+                ClassAttachment attachment = rootAttachment;
+                if (!classes.isEmpty()) {
+                    attachment = new ClassAttachment(clazz, getClassName(clazz));
+                    classes.peek().nestedClasses.add(attachment);
                 }
 
-                methodMappings.putIfAbsent(method, methodMapping);
+                classes.push(attachment);
+                super.visitClass(clazz);
+                classes.pop();
+            }
 
-                Map<Integer, LocalVariableMapping> localVariables = new HashMap<>();
-                methodMapping.localVariables.forEach(localVariable -> localVariables.putIfAbsent(localVariable.index, localVariable));
+            @Override
+            public void visitMethod(PsiMethod method) {
+                List<Object> descriptor = new ArrayList<>();
+                descriptor.add("(");
+                PsiParameter[] parameters = method.getParameterList().getParameters();
+                int[] parameterIndices = new int[parameters.length];
 
                 int index = method.hasModifier(JvmModifier.STATIC) ? 0 : 1;
-                for (PsiParameter parameter : method.getParameterList().getParameters()) {
-                    LocalVariableMapping parameterMapping = localVariables.get(index);
-
-                    if (parameterMapping == null) {
-                        parameterMapping = new LocalVariableMapping(index, "arg" + index);
-                        methodMapping.localVariables.add(parameterMapping);
-                    }
+                for (int i = 0; i < parameters.length; i++) {
+                    resolveDescriptor(descriptor, parameters[i].getType());
+                    parameterIndices[i] = index;
+                    index += parameters[i].getType().equals(PsiType.LONG) || parameters[i].getType().equals(PsiType.DOUBLE) ? 2 : 1;
+                }
 
-                    parameterMappings.putIfAbsent(parameter, parameterMapping);
-                    index += parameter.getType().equals(PsiType.LONG) || parameter.getType().equals(PsiType.DOUBLE) ? 2 : 1;
+                descriptor.add(")");
+                if (method.isConstructor()) {
+                    descriptor.add("V");
+                } else {
+                    resolveDescriptor(descriptor, method.getReturnType());
                 }
 
+                classes.peek().methods.add(new MethodAttachment(method, method.isConstructor() ? "<init>" : method.getName(), descriptor, parameters, parameterIndices));
                 super.visitMethod(method);
             }
 
             @Override
             public void visitField(PsiField field) {
-                ClassData containingClassData = classes.peek();
-                String obfuscatedDescriptor = getObfuscatedDescriptor(field.getType());
-                FieldMapping fieldMapping = containingClassData.fields.get(field.getName() + " " + obfuscatedDescriptor);
+                List<Object> descriptor = new ArrayList<>();
+                resolveDescriptor(descriptor, field.getType());
+                classes.peek().fields.add(new FieldAttachment(field, field.getName(), descriptor));
+                super.visitField(field);
+            }
+        }.visitClass(rootClass);
 
-                if (fieldMapping == null) {
-                    fieldMapping = new FieldMapping(field.getName(), obfuscatedDescriptor, field.getName());
-                    containingClassData.mapping.fields.add(fieldMapping);
-                }
+        return rootAttachment;
+    }
 
-                fieldMappings.put(field, fieldMapping);
+    private void publishAttachment(ClassAttachment attachment, ClassMapping containingClassMapping) {
+        ClassMapping classMapping;
+        if (containingClassMapping == null) {
+            classMapping = getMapping(attachment.name, false);
+        } else {
+            classMapping = containingClassMapping.nestedClasses.getByName(attachment.name, null);
 
-                super.visitField(field);
+            if (classMapping == null) {
+                classMapping = new ClassMapping(attachment.name, attachment.name);
+                containingClassMapping.nestedClasses.add(classMapping);
             }
+        }
+
+        classMappings.putIfAbsent(attachment.clazz, classMapping);
 
-            class ClassData {
-                public final PsiClass clazz;
-                public final ClassMapping mapping;
-                public final Map<String, ClassMapping> nestedClasses = new HashMap<>();
-                public final Map<String, MethodMapping> methods = new HashMap<>();
-                public final Map<String, FieldMapping> fields = new HashMap<>();
+        for (MethodAttachment method : attachment.methods) {
+            String obfuscatedDescriptor = getObfuscatedDescriptor(method.descriptor);
+            MethodMapping methodMapping = classMapping.methods.getByName(method.name, obfuscatedDescriptor);
 
-                ClassData(PsiClass clazz, ClassMapping mapping) {
-                    this.clazz = clazz;
-                    this.mapping = mapping;
+            if (methodMapping == null) {
+                methodMapping = new MethodMapping(method.name, obfuscatedDescriptor, method.name);
+                classMapping.methods.add(methodMapping);
+            }
+
+            methodMappings.putIfAbsent(method.method, methodMapping);
+
+            for (int i = 0; i < method.parameters.length; i++) {
+                int index = method.parameterIndices[i];
+                LocalVariableMapping parameterMapping = methodMapping.localVariables.get(index);
+
+                if (parameterMapping == null) {
+                    parameterMapping = new LocalVariableMapping(index, "arg" + index);
+                    methodMapping.localVariables.add(parameterMapping);
                 }
+
+                parameterMappings.putIfAbsent(method.parameters[i], parameterMapping);
             }
-        }.visitClass(getRootClass(element));
+        }
+
+        for (FieldAttachment field : attachment.fields) {
+            String obfuscatedDescriptor = getObfuscatedDescriptor(field.descriptor);
+            FieldMapping fieldMapping = classMapping.fields.getByName(field.name, obfuscatedDescriptor);
+
+            if (fieldMapping == null) {
+                fieldMapping = new FieldMapping(field.name, obfuscatedDescriptor, field.name);
+                classMapping.fields.add(fieldMapping);
+            }
+
+            fieldMappings.put(field.field, fieldMapping);
+        }
+
+        for (ClassAttachment nestedClass : attachment.nestedClasses) {
+            publishAttachment(nestedClass, classMapping);
+        }
     }
 
     public ClassMapping getMapping(PsiClass clazz) {
         ClassMapping mapping = classMappings.get(clazz);
 
         if (mapping != null) {
+            if (clazz.getContainingClass() == null) {
+                recentlyUsedMappings.add(mapping); // keep recently shown classes cached
+            }
+
             return mapping;
         }
 
@@ -218,24 +1192,86 @@ public class MappingService {
     }
 
     private String getClassName(PsiClass clazz) {
-        return clazz instanceof PsiAnonymousClass ?
-                JavaAnonymousClassesHelper.getName((PsiAnonymousClass) clazz).substring(1) :
-                clazz.getName();
+        if (!(clazz instanceof PsiAnonymousClass)) {
+            return clazz.getName();
+        }
+
+        String name = getAnonymousClassNames(getRootClass(clazz)).get(clazz);
+        return name != null ? name : JavaAnonymousClassesHelper.getName((PsiAnonymousClass) clazz).substring(1);
     }
 
-    private ClassMapping getMapping(String mappingName) {
+    // Numbered like javac, in source order per directly containing class, for all anonymous classes of a file at once
+    private static Map<PsiAnonymousClass, String> getAnonymousClassNames(PsiClass rootClass) {
+        return CachedValuesManager.getCachedValue(rootClass, () -> {
+            Map<PsiAnonymousClass, String> names = new HashMap<>();
+            Map<PsiClass, int[]> counts = new HashMap<>();
+
+            // Walks iteratively so deeply nested expressions can't overflow the stack
+            rootClass.accept(new JavaRecursiveWalkingElementVisitor() {
+                final Deque<PsiClass> classes = new ArrayDeque<>();
+                final Map<PsiExpressionList, PsiAnonymousClass> pendingArguments = new HashMap<>();
+
+                @Override
+                public void visitClass(PsiClass clazz) {
+                    if (!(clazz instanceof PsiAnonymousClass)) {
+                        classes.push(clazz);
+                    }
+
+                    super.visitClass(clazz);
+                }
+
+                @Override
+                public void visitAnonymousClass(PsiAnonymousClass clazz) {
+                    // The arguments are part of the anonymous class in PSI, but belong to the enclosing class and come first
+                    PsiExpressionList arguments = clazz.getArgumentList();
+                    if (arguments != null && arguments.getParent() == clazz) {
+                        pendingArguments.put(arguments, clazz);
+                    } else {
+                        enterAnonymousClass(clazz);
+                    }
+
+                    super.visitAnonymousClass(clazz);
+                }
+
+                @Override
+                protected void elementFinished(PsiElement element) {
+                    if (element instanceof PsiExpressionList) {
+                        PsiAnonymousClass clazz = pendingArguments.remove(element);
+                        if (clazz != null) {
+                            enterAnonymousClass(clazz);
+                        }
+                    } else if (element instanceof PsiClass) {
+                        classes.pop();
+                    }
+                }
+
+                private void enterAnonymousClass(PsiAnonymousClass clazz) {
+                    names.put(clazz, String.valueOf(++counts.computeIfAbsent(classes.peek(), k -> new int[1])[0]));
+                    classes.push(clazz);
+                }
+            });
+
+            return CachedValueProvider.Result.create(names, rootClass.getContainingFile());
+        });
+    }
+
+    // Descriptors only need the obfuscated names, so their lookups read members once they are used
+    private synchronized ClassMapping getMapping(String mappingName, boolean headerOnly) {
         return mappings.computeIfAbsent(mappingName, k -> {
             try {
-                File file = getMappingFile(mappingName);
-                if (file.exists()) {
-                    ClassMapping mapping = MappingSerializer.readClass(file);
-                    mappingFiles.put(mapping, file);
-                    return mapping;
-                } else {
-                    return new ClassMapping(mappingName, mappingName);
+                ClassMapping mapping = preloadedMappings == null ? null : preloadedMappings.get(getMappingName(mappingName));
+                if (mapping == null) {
+                    mapping = headerOnly ? mappingStore.readHeader(getMappingName(mappingName), this::reportReadError) : mappingStore.read(getMappingName(mappingName));
                 }
+
+                if (mapping == null) {
+                    mapping = new ClassMapping(mappingName, mappingName);
+                }
+
+                mappingNames.put(mapping, getMappingName(mappingName));
+                return mapping;
             } catch (MappingSerializer.MappingFormatException e) {
-                Messages.showErrorDialog(e.getMessage() + " in " + e.file + (e.line == -1 ? "" : " on line " + e.line), "Failed to Read Mapping File");
+                reportReadError(e);
                 return new ClassMapping(mappingName, mappingName);
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -243,82 +1279,163 @@ public class MappingService {
         });
     }
 
+    // Called from any thread, errors are collected and shown in one dialog on the event thread
+    private void reportReadError(Exception e) {
+        if (!(e instanceof MappingSerializer.MappingFormatException)) {
+            LOG.error(e);
+            return;
+        }
+
+        MappingSerializer.MappingFormatException formatException = (MappingSerializer.MappingFormatException) e;
+        synchronized (readErrors) {
+            readErrors.add(formatException.getMessage() + " in " + formatException.file + (formatException.line == -1 ? "" : " on line " + formatException.line));
+            if (readErrors.size() > 1) { // already scheduled
+                return;
+            }
+        }
+
+        ApplicationManager.getApplication().invokeLater(() -> {
+            List<String> errors;
+            synchronized (readErrors) {
+                errors = new ArrayList<>(readErrors);
+                readErrors.clear();
+            }
+
+            Messages.showErrorDialog(String.join("\n", errors), errors.size() == 1 ? "Failed to Read Mapping File" : "Failed to Read Mapping Files");
+        }, project.getDisposed());
+    }
+
     private PsiClass getRootClass(PsiElement element) {
         PsiClass topmostParent = PsiTreeUtil.getTopmostParentOfType(element, PsiClass.class);
         return topmostParent == null && element instanceof PsiClass ? (PsiClass) element : topmostParent;
     }
 
-    private String getObfuscatedDescriptor(PsiMethod method) {
-        StringBuilder descriptor = new StringBuilder();
-        descriptor.append('(');
+    // Classes become references to their mapping, their obfuscated names are looked up in the mappings under the lock
+    private void resolveDescriptor(List<Object> descriptor, PsiType type) {
+        if (type instanceof PsiPrimitiveType) {
+            descriptor.add(((PsiPrimitiveType) type).getKind().getBinaryName());
+        } else if (type instanceof PsiClassType) {
+            PsiClass resolved = ((PsiClassType) type).resolve();
 
-        for (PsiParameter parameter : method.getParameterList().getParameters()) {
-            descriptor.append(getObfuscatedDescriptor(parameter.getType()));
+            if (resolved instanceof PsiTypeParameter) { // erased to its first bound
+                PsiClassType[] bounds = resolved.getExtendsList().getReferencedTypes();
+                if (bounds.length == 0) {
+                    descriptor.add("Ljava/lang/Object;");
+                } else {
+                    resolveDescriptor(descriptor, bounds[0]);
+                }
+            } else {
+                descriptor.add(resolved == null ? null : getClassReference(resolved));
+            }
+        } else if (type instanceof PsiArrayType) {
+            descriptor.add("[");
+            resolveDescriptor(descriptor, ((PsiArrayType) type).getComponentType());
+        } else {
+            throw new IllegalStateException("couldn't find descriptor for " + type);
         }
+    }
+
+    private String getObfuscatedDescriptor(List<Object> resolvedDescriptor) {
+        StringBuilder descriptor = descriptorBuilder;
+        descriptor.setLength(0);
 
-        descriptor.append(')');
-        descriptor.append(method.isConstructor() ? "V" : getObfuscatedDescriptor(method.getReturnType()));
+        for (Object part : resolvedDescriptor) {
+            descriptor.append(part instanceof String ? (String) part : getObfuscatedDescriptor((ClassReference) part));
+        }
 
         return descriptor.toString();
     }
 
-    private String getObfuscatedDescriptor(PsiType type) {
-        if (type instanceof PsiPrimitiveType) {
-            return ((PsiPrimitiveType) type).getKind().getBinaryName();
+    // Class names only change through structure changes or mapping renames, which both clear the cache
+    private String getObfuscatedDescriptor(ClassReference resolved) {
+        if (resolved == null) {
+            return "Lunresolved_class;";
         }
 
-        if (type instanceof PsiClassType) {
-            PsiClass resolved = ((PsiClassType) type).resolve();
+        long modificationCount = PsiModificationTracker.SERVICE.getInstance(project).getJavaStructureModificationCount();
+        if (modificationCount != descriptorModificationCount) {
+            classDescriptors.clear();
+            descriptorModificationCount = modificationCount;
+        }
 
-            if (resolved instanceof PsiTypeParameter) {
-                PsiClassType[] bounds = ((PsiTypeParameter) resolved).getExtendsList().getReferencedTypes();
+        String descriptor = classDescriptors.get(resolved.clazz);
+        if (descriptor == null) {
+            descriptor = computeObfuscatedDescriptor(resolved);
+            classDescriptors.put(resolved.clazz, descriptor);
+        }
 
-                return bounds.length == 0 ? "Ljava/lang/Object;" : getObfuscatedDescriptor(bounds[0]);
-            }
+        return descriptor;
+    }
 
-            if (resolved == null) {
-                return "Lunresolved_class;";
-            }
+    // Cache misses only, the mappings were read by attachMappings
+    private String computeObfuscatedDescriptor(ClassReference resolved) {
+        if (classNameTable != null) {
+            return "L" + getObfuscatedClassName(resolved.mappingName, resolved.nestedClassPath) + ";";
+        }
 
-            Deque<String> nestedClassPath = new ArrayDeque<>();
+        ClassMapping mapping = getMapping(resolved.mappingName, true);
 
-            while (resolved.getContainingClass() != null) {
-                nestedClassPath.addFirst(getClassName(resolved));
-                resolved = resolved.getContainingClass();
+        StringBuilder obfuscatedName = new StringBuilder();
+        obfuscatedName.append('L').append(mapping.obfuscatedName);
+        for (String nestedClassName : resolved.nestedClassPath) {
+            if (mapping != null) {
+                mapping = mapping.nestedClasses.getByName(nestedClassName, null);
             }
 
-            ClassMapping mapping = getMapping(getMappingName(resolved.getQualifiedName()));
+            obfuscatedName.append('$').append(mapping == null ? nestedClassName : mapping.obfuscatedName);
+        }
 
-            StringBuilder obfuscatedName = new StringBuilder();
-            obfuscatedName.append(mapping.obfuscatedName);
-            for (String nestedClassName : nestedClassPath) {
-                findNestedClassMapping:
-                if (mapping != null) {
-                    for (ClassMapping nestedClassMapping : mapping.nestedClasses) {
-                        if (nestedClassMapping.name.equals(nestedClassName)) {
-                            mapping = nestedClassMapping;
-                            break findNestedClassMapping;
-                        }
+        return obfuscatedName.append(';').toString();
+    }
 
-                        mapping = null;
-                    }
-                }
+    // The PSI part of a class descriptor, resolved before taking the lock
+    private ClassReference getClassReference(PsiClass resolved) {
+        return CachedValuesManager.getCachedValue(resolved, () -> {
+            Deque<String> nestedClassPath = new ArrayDeque<>();
+            PsiClass rootClass = resolved;
 
-                obfuscatedName.append('$').append(mapping == null ? nestedClassName : mapping.obfuscatedName);
+            while (rootClass.getContainingClass() != null) {
+                nestedClassPath.addFirst(getClassName(rootClass));
+                rootClass = rootClass.getContainingClass();
             }
 
-            return "L" + obfuscatedName + ";";
+            ClassReference reference = new ClassReference(resolved, getMappingName(rootClass.getQualifiedName()), new ArrayList<>(nestedClassPath));
+            return CachedValueProvider.Result.create(reference, PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+        });
+    }
+
+    // Uses the longest mapped outer class; the remaining nested classes have no mapping
+    private String getObfuscatedClassName(String mappingName, List<String> nestedClassPath) {
+        StringBuilder name = new StringBuilder(mappingName);
+        List<Integer> nestedClassStarts = new ArrayList<>();
+        for (String nestedClassName : nestedClassPath) {
+            nestedClassStarts.add(name.length());
+            name.append('$').append(nestedClassName);
         }
 
-        if (type instanceof PsiArrayType) {
-            return "[" + getObfuscatedDescriptor(((PsiArrayType) type).getComponentType());
+        for (int i = nestedClassStarts.size(); i >= 0; i--) {
+            int end = i == nestedClassStarts.size() ? name.length() : nestedClassStarts.get(i);
+            String obfuscatedName = classNameTable.getObfuscatedName(name.substring(0, end));
+
+            if (obfuscatedName != null) {
+                return obfuscatedName + name.substring(end);
+            }
         }
 
-        throw new IllegalStateException("couldn't find descriptor for " + type);
+        return name.toString();
     }
 
-    private File getMappingFile(String name) {
-        return new File(mappingDirectory, getMappingName(name) + ".mapping");
+    // Per project and store, so projects sharing mappings don't replay or compact each other's journal
+    private File getCacheFile(String storePath, String extension) {
+        String storeHash;
+        try {
+            storeHash = String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(storePath.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        String storeName = PathUtil.suggestFileName(new File(storePath).getName());
+        return new File(PathManager.getSystemPath(), "knit/" + storeName + "." + project.getLocationHash() + "." + storeHash + "." + extension);
     }
 
     // TODO: settings
@@ -342,4 +1459,61 @@ public class MappingService {
     public static MappingService getInstance(Project project) {
         return ServiceManager.getService(project, MappingService.class);
     }
+
+    public static class State {
+        public List<String> mappingLayers = new ArrayList<>();
+    }
+
+    private static class ClassAttachment {
+        final PsiClass clazz;
+        final String name; // mapping name of a root class, class name of a nested class
+        final List<ClassAttachment> nestedClasses = new ArrayList<>();
+        final List<MethodAttachment> methods = new ArrayList<>();
+        final List<FieldAttachment> fields = new ArrayList<>();
+
+        ClassAttachment(PsiClass clazz, String name) {
+            this.clazz = clazz;
+            this.name = name;
+        }
+    }
+
+    private static class ClassReference {
+        final PsiClass clazz;
+        final String mappingName;
+        final List<String> nestedClassPath;
+
+        ClassReference(PsiClass clazz, String mappingName, List<String> nestedClassPath) {
+            this.clazz = clazz;
+            this.mappingName = mappingName;
+            this.nestedClassPath = nestedClassPath;
+        }
+    }
+
+    private static class MethodAttachment {
+        final PsiMethod method;
+        final String name;
+        final List<Object> descriptor;
+        final PsiParameter[] parameters;
+        final int[] parameterIndices;
+
+        MethodAttachment(PsiMethod method, String name, List<Object> descriptor, PsiParameter[] parameters, int[] parameterIndices) {
+            this.method = method;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.parameters = parameters;
+            this.parameterIndices = parameterIndices;
+        }
+    }
+
+    private static class FieldAttachment {
+        final PsiField field;
+        final String name;
+        final List<Object> descriptor;
+
+        FieldAttachment(PsiField field, String name, List<Object> descriptor) {
+            this.field = field;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+    }
 }
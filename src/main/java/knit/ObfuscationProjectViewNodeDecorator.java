@@ -12,6 +12,7 @@ public class ObfuscationProjectViewNodeDecorator implements ProjectViewNodeDecor
     @Override
     public void decorate(ProjectViewNode node, PresentationData data) {
         MappingService mappingService = MappingService.getInstance(node.getProject());
+        SuperMethodCache superMethodCache = SuperMethodCache.getInstance(node.getProject());
         PsiElement element = getElement(node);
 
         if (!(element instanceof PsiClass) || !mappingService.hasMappings()) {
@@ -24,14 +25,14 @@ public class ObfuscationProjectViewNodeDecorator implements ProjectViewNodeDecor
         new JavaRecursiveElementVisitor() {
             @Override
             public void visitMethod(PsiMethod method) {
-                if (method.isConstructor() || method.findSuperMethods().length > 0) {
+                if (method.isConstructor() || superMethodCache.hasSuperMethods(method)) {
                     super.visitMethod(method);
                     return;
                 }
 
                 MethodMapping mapping = mappingService.getMapping(method);
 
-                if (!mapping.name.equals(mapping.obfuscatedName) && mappingService.isMethodObfuscated(mapping.obfuscatedName)) {
+                if (!mapping.getName().equals(mapping.obfuscatedName) && mappingService.isMethodObfuscated(mapping.obfuscatedName)) {
                     mappedMethods[0]++;
                 }
 
@@ -39,11 +39,13 @@ public class ObfuscationStatusPass extends TextEditorHighlightingPass { // TODO:
 
     private final PsiFile file;
     private final MappingService mappingService;
+    private final SuperMethodCache superMethodCache;
 
     public ObfuscationStatusPass(Project project, PsiFile file, Editor editor) {
         super(project, editor.getDocument(), true);
         this.file = file;
         mappingService = MappingService.getInstance(project);
+        superMethodCache = SuperMethodCache.getInstance(project);
     }
 
     @Override
@@ -66,27 +68,24 @@ public class ObfuscationStatusPass extends TextEditorHighlightingPass { // TODO:
                 }
 
                 ClassMapping mapping = mappingService.getMapping(clazz);
-                mark(clazz, mapping.obfuscatedName, !mapping.name.equals(mapping.obfuscatedName), mappingService.isClassObfuscated(mapping.obfuscatedName));
+                mark(clazz, mapping.obfuscatedName, !mapping.getName().equals(mapping.obfuscatedName), mappingService.isClassObfuscated(mapping.obfuscatedName));
             }
 
             @Override
             public void visitField(PsiField field) {
                 super.visitField(field);
                 FieldMapping mapping = mappingService.getMapping(field);
-                mark(field, mapping.obfuscatedName, !mapping.name.equals(mapping.obfuscatedName), mappingService.isFieldObfuscated(mapping.obfuscatedName));
+                mark(field, mapping.obfuscatedName, !mapping.getName().equals(mapping.obfuscatedName), mappingService.isFieldObfuscated(mapping.obfuscatedName));
             }
 
             @Override
             public void visitMethod(PsiMethod method) {
                 super.visitMethod(method);
-                PsiMethod[] superMethods = method.findDeepestSuperMethods();
-                if (superMethods.length != 0) {
-                    for (PsiMethod superMethod : superMethods) {
-                        if (superMethod.getContainingFile().isWritable()) {
-                            MethodMapping mapping = mappingService.getMapping(superMethod);
-                            mark(method, mapping.obfuscatedName, !mapping.name.equals(mapping.obfuscatedName), mappingService.isMethodObfuscated(mapping.obfuscatedName));
-                            break;
-                        }
+                PsiMethod mappedMethod = superMethodCache.getMappedMethod(method);
+                if (mappedMethod != method) {
+                    if (mappedMethod != null) {
+                        MethodMapping mapping = mappingService.getMapping(mappedMethod);
+                        mark(method, mapping.obfuscatedName, !mapping.getName().equals(mapping.obfuscatedName), mappingService.isMethodObfuscated(mapping.obfuscatedName));
                     }
 
                     return;
@@ -95,12 +94,12 @@ public class ObfuscationStatusPass extends TextEditorHighlightingPass { // TODO:
                 if (method.isConstructor()) {
                     PsiClass clazz = method.getContainingClass();
                     ClassMapping mapping = mappingService.getMapping(clazz);
-                    mark(clazz, mapping.obfuscatedName, !mapping.name.equals(mapping.obfuscatedName), mappingService.isClassObfuscated(mapping.obfuscatedName));
+                    mark(clazz, mapping.obfuscatedName, !mapping.getName().equals(mapping.obfuscatedName), mappingService.isClassObfuscated(mapping.obfuscatedName));
                     return;
                 }
 
                 MethodMapping mapping = mappingService.getMapping(method);
-                mark(method, mapping.obfuscatedName, !mapping.name.equals(mapping.obfuscatedName), mappingService.isMethodObfuscated(mapping.obfuscatedName));
+                mark(method, mapping.obfuscatedName, !mapping.getName().equals(mapping.obfuscatedName), mappingService.isMethodObfuscated(mapping.obfuscatedName));
             }
 
             @Override
@@ -109,8 +108,7 @@ public class ObfuscationStatusPass extends TextEditorHighlightingPass { // TODO:
                     return;
                 }
 
-                PsiMethod[] superMethods = ((PsiMethod) parameter.getDeclarationScope()).findDeepestSuperMethods();
-                if (superMethods.length != 0) {
+                if (superMethodCache.hasSuperMethods((PsiMethod) parameter.getDeclarationScope())) {
                     return;
                 }
 
@@ -25,25 +25,29 @@ public class RemappingRefactoringListener implements RefactoringElementListener,
         this.element = element;
         oldName = getQualifiedName(element);
 
+        if (element instanceof PsiClass || element instanceof PsiMember || element instanceof PsiParameter) {
+            mappingService.pinMapping(this, element);
+        }
+
         if (element instanceof PsiClass) {
             mappingService.attachMappings(element);
             ClassMapping mapping = mappingService.getMapping((PsiClass) element);
             setter = name -> {
-                mapping.name = mappingService.getMappingName(name);
+                mapping.setName(mappingService.getMappingName(name));
                 mappingService.markChanged(element);
             };
         } else if (element instanceof PsiField) {
             mappingService.attachMappings(element);
             FieldMapping mapping = mappingService.getMapping((PsiField) element);
             setter = name -> {
-                mapping.name = name;
+                mapping.setName(name);
                 mappingService.markChanged(element);
             };
         } else if (element instanceof PsiMethod && !((PsiMethod) element).isConstructor()) {
             mappingService.attachMappings(element);
             MethodMapping mapping = mappingService.getMapping((PsiMethod) element);
             setter = name -> {
-                mapping.name = name;
+                mapping.setName(name);
                 mappingService.markChanged(element);
             };
         } else if (element instanceof PsiParameter && ((PsiParameter) element).getDeclarationScope() instanceof PsiMethod) {
@@ -71,9 +75,10 @@ public class RemappingRefactoringListener implements RefactoringElementListener,
 
     private void createPackageNameSetter(String nameRest, PsiPackage package_, List<Consumer<String>> setters) {
         for (PsiClass clazz : package_.getClasses()) {
+            mappingService.pinMapping(this, clazz);
             ClassMapping mapping = mappingService.getMapping(clazz);
             setters.add(name -> {
-                mapping.name = (name + nameRest + "." + clazz.getName()).replace('.', '/');
+                mapping.setName((name + nameRest + "." + clazz.getName()).replace('.', '/'));
                 mappingService.markChanged(clazz);
             });
         }
@@ -95,7 +100,7 @@ public class RemappingRefactoringListener implements RefactoringElementListener,
     @Override
     public void elementRenamed(@NotNull PsiElement newElement) {
         if (mappingService.hasMappings()) {
-            if (element instanceof PsiMethod && ((PsiMethod) element).findSuperMethods().length != 0) {
+            if (element instanceof PsiMethod && SuperMethodCache.getInstance(element.getProject()).hasSuperMethods((PsiMethod) element)) {
                 return;
             }
 
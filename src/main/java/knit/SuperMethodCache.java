@@ -0,0 +1,48 @@
+package knit;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+
+public class SuperMethodCache {
+    private final Project project;
+
+    public SuperMethodCache(Project project) {
+        this.project = project;
+    }
+
+    // Super methods only change with the Java structure, so edits inside method bodies keep the cache
+    public PsiMethod[] getDeepestSuperMethods(PsiMethod method) {
+        return CachedValuesManager.getManager(project).getCachedValue(method, () -> CachedValueProvider.Result.create(
+                method.findDeepestSuperMethods(),
+                PsiModificationTracker.SERVICE.getInstance(project).getJavaStructureModificationTracker()
+        ));
+    }
+
+    public boolean hasSuperMethods(PsiMethod method) {
+        return getDeepestSuperMethods(method).length != 0;
+    }
+
+    // The mapping of a method that overrides others is saved with the first writable method it overrides
+    public PsiMethod getMappedMethod(PsiMethod method) {
+        PsiMethod[] superMethods = getDeepestSuperMethods(method);
+        if (superMethods.length == 0) {
+            return method;
+        }
+
+        for (PsiMethod superMethod : superMethods) {
+            if (superMethod.getContainingFile().isWritable()) {
+                return superMethod;
+            }
+        }
+
+        return null;
+    }
+
+    public static SuperMethodCache getInstance(Project project) {
+        return ServiceManager.getService(project, SuperMethodCache.class);
+    }
+}
@@ -0,0 +1,76 @@
+package knit.mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+public class ArchiveMappingStore implements MappingStore {
+    private static final String MAPPINGS_DIRECTORY = "mappings";
+
+    private final File archive;
+    private final FileSystem fileSystem;
+    private final Path root;
+
+    public ArchiveMappingStore(File archive) throws IOException {
+        this.archive = archive;
+        fileSystem = FileSystems.newFileSystem(archive.toPath(), (ClassLoader) null);
+
+        Path archiveRoot = fileSystem.getPath("/");
+        Path mappingsDirectory = archiveRoot.resolve(MAPPINGS_DIRECTORY);
+        root = Files.isDirectory(mappingsDirectory) ? mappingsDirectory : archiveRoot;
+    }
+
+    @Override
+    public ClassMapping read(String mappingName) throws IOException, MappingSerializer.MappingFormatException {
+        Path file = root.resolve(mappingName + ".mapping");
+        return Files.isRegularFile(file) ? MappingSerializer.readClass(file) : null;
+    }
+
+    @Override
+    public ClassMapping readHeader(String mappingName, Consumer<Exception> loadErrorHandler) throws IOException, MappingSerializer.MappingFormatException {
+        Path file = root.resolve(mappingName + ".mapping");
+        return Files.isRegularFile(file) ? MappingSerializer.readClassHeader(file, loadErrorHandler) : null;
+    }
+
+    @Override
+    public List<String> listMappingNames() throws IOException, MappingSerializer.MappingFormatException {
+        return MappingSerializer.listMappingNames(root);
+    }
+
+    @Override
+    public Map<String, ClassMapping> readAll(Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException, MappingSerializer.MappingFormatException {
+        return MappingSerializer.readByName(root, executor, errors);
+    }
+
+    @Override
+    public void write(String mappingName, byte[] serializedClass) throws IOException {
+        throw new IOException("mapping archive " + archive + " is read-only");
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public long fingerprint() {
+        return archive.length() * 31 + archive.lastModified();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileSystem.close();
+    }
+
+    @Override
+    public String toString() {
+        return archive.getAbsolutePath();
+    }
+}
@@ -1,20 +1,120 @@
 package knit.mapping;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.function.Consumer;
 
 public class ClassMapping {
-    public String obfuscatedName;
-    public String name;
-    public final Set<ClassMapping> nestedClasses = new LinkedHashSet<>();
-    public final Set<FieldMapping> fields = new LinkedHashSet<>();
-    public final Set<MethodMapping> methods = new LinkedHashSet<>();
+    static final MappingSet.Key<ClassMapping> KEY = new MappingSet.Key<ClassMapping>(ClassMapping.class) {
+        @Override
+        String getObfuscatedName(ClassMapping entry) {
+            return entry.obfuscatedName;
+        }
+
+        @Override
+        String getObfuscatedDescriptor(ClassMapping entry) {
+            return null;
+        }
+
+        @Override
+        String getName(ClassMapping entry) {
+            return entry.name;
+        }
+
+        @Override
+        void setOwner(ClassMapping entry, MappingSet<ClassMapping> owner) {
+            entry.owner = owner;
+        }
+    };
+
+    public final String obfuscatedName;
+    private volatile String name;
+    public final MappingSet<ClassMapping> nestedClasses = new MappingSet<>(KEY);
+    public final MappingSet<FieldMapping> fields = new MappingSet<>(FieldMapping.KEY);
+    public final MappingSet<MethodMapping> methods = new MappingSet<>(MethodMapping.KEY);
     public final List<CommentLine> comments = new ArrayList<>();
+    private MappingSet<ClassMapping> owner = null;
 
     public ClassMapping(String obfuscatedName, String name) {
         this.obfuscatedName = obfuscatedName;
         this.name = name;
     }
+
+    // Members are copied from the loaded class the first time any member collection is used
+    void setMemberLoader(MemberLoader loader, Consumer<Exception> errorHandler) {
+        Runnable load = () -> {
+            synchronized (this) {
+                if (nestedClasses.loader == null) { // loaded by another thread
+                    return;
+                }
+
+                try {
+                    ClassMapping loaded = loader.load();
+                    for (ClassMapping nestedClass : loaded.nestedClasses) {
+                        nestedClasses.addLoaded(nestedClass);
+                    }
+
+                    for (FieldMapping field : loaded.fields) {
+                        fields.addLoaded(field);
+                    }
+
+                    for (MethodMapping method : loaded.methods) {
+                        methods.addLoaded(method);
+                    }
+                } catch (IOException | MappingSerializer.MappingFormatException e) {
+                    errorHandler.accept(e); // members stay empty, like a mapping that failed to read
+                } finally {
+                    // Published last, other threads only skip loading once all members are in
+                    nestedClasses.loader = null;
+                    fields.loader = null;
+                    methods.loader = null;
+                }
+            }
+        };
+
+        nestedClasses.loader = load;
+        fields.loader = load;
+        methods.loader = load;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Renames go through the owning set so its name index stays current
+    public void setName(String name) {
+        String oldName = this.name;
+        this.name = name;
+
+        if (owner != null) {
+            owner.rename(this, oldName);
+        }
+    }
+
+    public boolean hasLoadedMembers() {
+        return nestedClasses.loader == null;
+    }
+
+    // Reads the members of a mapping read with only its header, instead of on their first use
+    public void loadMembers() {
+        Runnable loader = nestedClasses.loader;
+        if (loader != null) {
+            loader.run();
+        }
+    }
+
+    // Counts this class and its members that are loaded, without loading more
+    public int getLoadedSize() {
+        int size = 1 + fields.getLoaded().size() + methods.getLoaded().size();
+        for (ClassMapping nestedClass : nestedClasses.getLoaded()) {
+            size += nestedClass.getLoadedSize();
+        }
+
+        return size;
+    }
+
+    interface MemberLoader {
+        ClassMapping load() throws IOException, MappingSerializer.MappingFormatException;
+    }
 }
@@ -0,0 +1,90 @@
+package knit.mapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ClassMappingTree {
+    private final Map<String, ClassMapping> classes = new HashMap<>();
+    private final Set<ClassMapping> rootClasses = new LinkedHashSet<>();
+    private final Map<String, String> descriptorClassNames = new HashMap<>();
+
+    ClassMapping getClass(String obfuscatedName) {
+        ClassMapping clazz = classes.get(obfuscatedName);
+
+        if (clazz == null) {
+            int nestedStart = obfuscatedName.lastIndexOf('$');
+
+            if (nestedStart == -1) {
+                clazz = new ClassMapping(obfuscatedName, obfuscatedName);
+                rootClasses.add(clazz);
+            } else {
+                String simpleName = obfuscatedName.substring(nestedStart + 1);
+                clazz = new ClassMapping(simpleName, simpleName);
+                getClass(obfuscatedName.substring(0, nestedStart)).nestedClasses.add(clazz);
+            }
+
+            classes.put(obfuscatedName, clazz);
+        }
+
+        return clazz;
+    }
+
+    ClassMapping getClass(String obfuscatedName, String name) {
+        ClassMapping clazz = getClass(obfuscatedName);
+        clazz.setName(obfuscatedName.indexOf('$') == -1 ? name : name.substring(name.lastIndexOf('$') + 1));
+        return clazz;
+    }
+
+    // Descriptors in flat formats use the first namespace, which need not be the obfuscated one
+    void addDescriptorClassName(String descriptorName, String obfuscatedName) {
+        descriptorClassNames.put(descriptorName, obfuscatedName);
+    }
+
+    Set<ClassMapping> finish() {
+        if (!descriptorClassNames.isEmpty()) {
+            rootClasses.forEach(this::remapDescriptors);
+        }
+
+        return rootClasses;
+    }
+
+    private void remapDescriptors(ClassMapping clazz) {
+        // Descriptors are part of the sort key, so entries are replaced by remapped copies
+        List<FieldMapping> fields = new ArrayList<>(clazz.fields);
+        clazz.fields.clear();
+        for (FieldMapping field : fields) {
+            FieldMapping remappedField = new FieldMapping(field.obfuscatedName, remapDescriptor(field.obfuscatedDescriptor), field.getName());
+            remappedField.comments.addAll(field.comments);
+            clazz.fields.add(remappedField);
+        }
+
+        List<MethodMapping> methods = new ArrayList<>(clazz.methods);
+        clazz.methods.clear();
+        for (MethodMapping method : methods) {
+            MethodMapping remappedMethod = new MethodMapping(method.obfuscatedName, remapDescriptor(method.obfuscatedDescriptor), method.getName());
+            remappedMethod.comments.addAll(method.comments);
+            remappedMethod.localVariables.addAll(method.localVariables);
+            clazz.methods.add(remappedMethod);
+        }
+
+        clazz.nestedClasses.forEach(this::remapDescriptors);
+    }
+
+    private String remapDescriptor(String descriptor) {
+        StringBuilder remapped = new StringBuilder(descriptor.length());
+        int start = 0;
+
+        for (int i = descriptor.indexOf('L'); i != -1; i = descriptor.indexOf('L', start)) {
+            int end = descriptor.indexOf(';', i);
+            String className = descriptor.substring(i + 1, end);
+            remapped.append(descriptor, start, i + 1).append(descriptorClassNames.getOrDefault(className, className));
+            start = end;
+        }
+
+        return remapped.append(descriptor, start, descriptor.length()).toString();
+    }
+}
@@ -0,0 +1,64 @@
+package knit.mapping;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Full mapped class names (nested classes joined with '$') to full obfuscated names and back.
+ */
+public class ClassNameTable {
+    private final Map<String, String> obfuscatedNames = new HashMap<>();
+    private final Map<String, String> names = new HashMap<>();
+
+    public static ClassNameTable of(CompactMappingSet classes) {
+        ClassNameTable table = new ClassNameTable();
+        classes.forEachClassName(table::put);
+        return table;
+    }
+
+    public String getObfuscatedName(String name) {
+        return obfuscatedNames.get(name);
+    }
+
+    public void put(ClassMapping rootClass) {
+        new FlatMappingVisitor() {
+            @Override
+            protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) {
+                put(obfuscatedName, name);
+            }
+
+            @Override
+            public void visit(FieldMapping field) {}
+
+            @Override
+            public void visit(MethodMapping method) {}
+        }.visit(rootClass);
+    }
+
+    public void remove(ClassMapping rootClass) {
+        new FlatMappingVisitor() {
+            @Override
+            protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) {
+                String oldName = names.remove(obfuscatedName);
+                if (oldName != null) {
+                    obfuscatedNames.remove(oldName, obfuscatedName);
+                }
+            }
+
+            @Override
+            public void visit(FieldMapping field) {}
+
+            @Override
+            public void visit(MethodMapping method) {}
+        }.visit(rootClass);
+    }
+
+    private void put(String obfuscatedName, String name) {
+        String oldName = names.put(obfuscatedName, name);
+        if (oldName != null && !oldName.equals(name)) {
+            obfuscatedNames.remove(oldName, obfuscatedName);
+        }
+
+        obfuscatedNames.put(name, obfuscatedName);
+    }
+}
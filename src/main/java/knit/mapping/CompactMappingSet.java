@@ -0,0 +1,267 @@
+package knit.mapping;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Read-only mapping set stored as a string pool and a single int array,
+ * using the record layout of {@link MappingSnapshot}. Classes are inflated
+ * into {@link ClassMapping} trees on demand.
+ */
+public class CompactMappingSet {
+    private final String[] strings;
+    private final int[] data;
+    private final String[] mappingNames; // sorted
+    private final int[] offsets; // parallel to mappingNames, -1 if removed
+
+    CompactMappingSet(String[] strings, int[] data, int recordCount) {
+        this.strings = strings;
+        this.data = data;
+
+        Integer[] order = new Integer[recordCount];
+        int[] recordOffsets = new int[recordCount];
+        for (int i = 0, position = 0; i < recordCount; i++) {
+            recordOffsets[i] = position + 1;
+            order[i] = i;
+            position += 1 + data[position] / 4;
+        }
+
+        Arrays.sort(order, Comparator.comparing(i -> strings[data[recordOffsets[i]]]));
+        mappingNames = new String[recordCount];
+        offsets = new int[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            mappingNames[i] = strings[data[recordOffsets[order[i]]]];
+            offsets[i] = recordOffsets[order[i]] + 1;
+        }
+    }
+
+    public static CompactMappingSet of(Map<String, ClassMapping> classes) {
+        Map<String, Integer> stringIndices = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        IntList data = new IntList();
+
+        for (Map.Entry<String, ClassMapping> entry : classes.entrySet()) {
+            int start = data.size;
+            data.add(0);
+            data.add(stringIndex(entry.getKey(), stringIndices, strings));
+            writeClass(data, entry.getValue(), stringIndices, strings);
+            data.values[start] = (data.size - start - 1) * 4;
+        }
+
+        return new CompactMappingSet(strings.toArray(new String[0]), Arrays.copyOf(data.values, data.size), classes.size());
+    }
+
+    private static void writeClass(IntList data, ClassMapping clazz, Map<String, Integer> stringIndices, List<String> strings) {
+        data.add(stringIndex(clazz.obfuscatedName, stringIndices, strings));
+        data.add(stringIndex(clazz.getName(), stringIndices, strings));
+        writeComments(data, clazz.comments, stringIndices, strings);
+
+        data.add(clazz.nestedClasses.size());
+        for (ClassMapping nestedClass : clazz.nestedClasses) {
+            writeClass(data, nestedClass, stringIndices, strings);
+        }
+
+        data.add(clazz.fields.size());
+        for (FieldMapping field : clazz.fields) {
+            data.add(stringIndex(field.obfuscatedName, stringIndices, strings));
+            data.add(stringIndex(field.obfuscatedDescriptor, stringIndices, strings));
+            data.add(stringIndex(field.getName(), stringIndices, strings));
+            writeComments(data, field.comments, stringIndices, strings);
+        }
+
+        data.add(clazz.methods.size());
+        for (MethodMapping method : clazz.methods) {
+            data.add(stringIndex(method.obfuscatedName, stringIndices, strings));
+            data.add(stringIndex(method.obfuscatedDescriptor, stringIndices, strings));
+            data.add(stringIndex(method.getName(), stringIndices, strings));
+            writeComments(data, method.comments, stringIndices, strings);
+
+            data.add(method.localVariables.size());
+            for (LocalVariableMapping localVariable : method.localVariables) {
+                data.add(localVariable.index);
+                data.add(stringIndex(localVariable.name, stringIndices, strings));
+                writeComments(data, localVariable.comments, stringIndices, strings);
+            }
+        }
+    }
+
+    private static void writeComments(IntList data, List<CommentLine> comments, Map<String, Integer> stringIndices, List<String> strings) {
+        data.add(comments.size());
+        for (CommentLine comment : comments) {
+            data.add(stringIndex(comment.comment, stringIndices, strings));
+        }
+    }
+
+    private static int stringIndex(String string, Map<String, Integer> stringIndices, List<String> strings) {
+        return stringIndices.computeIfAbsent(string, s -> {
+            strings.add(s);
+            return strings.size() - 1;
+        });
+    }
+
+    public int size() {
+        int size = 0;
+        for (int offset : offsets) {
+            if (offset != -1) {
+                size++;
+            }
+        }
+
+        return size;
+    }
+
+    public boolean contains(String mappingName) {
+        return getOffset(mappingName) != -1;
+    }
+
+    public String getObfuscatedName(String mappingName) {
+        int offset = getOffset(mappingName);
+        return offset == -1 ? null : strings[data[offset]];
+    }
+
+    public ClassMapping get(String mappingName) {
+        int offset = getOffset(mappingName);
+        if (offset == -1) {
+            return null;
+        }
+
+        int[] position = {offset};
+        return readClass(position);
+    }
+
+    public Map<String, ClassMapping> getAll() {
+        Map<String, ClassMapping> classes = new LinkedHashMap<>(mappingNames.length * 2);
+        for (int i = 0; i < mappingNames.length; i++) {
+            if (offsets[i] != -1) {
+                classes.put(mappingNames[i], readClass(new int[] {offsets[i]}));
+            }
+        }
+
+        return classes;
+    }
+
+    // Full obfuscated and mapped names of every class, nested ones joined with '$'
+    public void forEachClassName(BiConsumer<String, String> consumer) {
+        for (int offset : offsets) {
+            if (offset != -1) {
+                visitClassNames(offset, null, null, consumer);
+            }
+        }
+    }
+
+    private int visitClassNames(int position, String outerObfuscatedName, String outerName, BiConsumer<String, String> consumer) {
+        String obfuscatedName = outerObfuscatedName == null ? strings[data[position]] : outerObfuscatedName + "$" + strings[data[position]];
+        String name = outerName == null ? strings[data[position + 1]] : outerName + "$" + strings[data[position + 1]];
+        consumer.accept(obfuscatedName, name);
+        position = skipComments(position + 2);
+
+        for (int i = data[position++]; i > 0; i--) {
+            position = visitClassNames(position, obfuscatedName, name, consumer);
+        }
+
+        for (int i = data[position++]; i > 0; i--) {
+            position = skipComments(position + 3);
+        }
+
+        for (int i = data[position++]; i > 0; i--) {
+            position = skipComments(position + 3);
+
+            for (int j = data[position++]; j > 0; j--) {
+                position = skipComments(position + 2);
+            }
+        }
+
+        return position;
+    }
+
+    private int skipComments(int position) {
+        return position + 1 + data[position];
+    }
+
+    public void remove(String mappingName) {
+        int index = Arrays.binarySearch(mappingNames, mappingName);
+        if (index >= 0) {
+            offsets[index] = -1;
+        }
+    }
+
+    public Map<String, ClassMapping> removeIf(Predicate<String> filter) {
+        Map<String, ClassMapping> removed = new HashMap<>();
+
+        for (int i = 0; i < mappingNames.length; i++) {
+            if (offsets[i] != -1 && filter.test(mappingNames[i])) {
+                removed.put(mappingNames[i], readClass(new int[] {offsets[i]}));
+                offsets[i] = -1;
+            }
+        }
+
+        return removed;
+    }
+
+    String[] getStrings() {
+        return strings;
+    }
+
+    int[] getData() {
+        return data;
+    }
+
+    int getRecordCount() {
+        return mappingNames.length;
+    }
+
+    private int getOffset(String mappingName) {
+        int index = Arrays.binarySearch(mappingNames, mappingName);
+        return index < 0 ? -1 : offsets[index];
+    }
+
+    private ClassMapping readClass(int[] position) {
+        ClassMapping clazz = new ClassMapping(strings[data[position[0]++]], strings[data[position[0]++]]);
+        readComments(position, clazz.comments);
+
+        for (int i = data[position[0]++]; i > 0; i--) {
+            clazz.nestedClasses.add(readClass(position));
+        }
+
+        for (int i = data[position[0]++]; i > 0; i--) {
+            FieldMapping field = new FieldMapping(strings[data[position[0]++]], strings[data[position[0]++]], strings[data[position[0]++]]);
+            readComments(position, field.comments);
+            clazz.fields.add(field);
+        }
+
+        for (int i = data[position[0]++]; i > 0; i--) {
+            MethodMapping method = new MethodMapping(strings[data[position[0]++]], strings[data[position[0]++]], strings[data[position[0]++]]);
+            readComments(position, method.comments);
+
+            for (int j = data[position[0]++]; j > 0; j--) {
+                LocalVariableMapping localVariable = new LocalVariableMapping(data[position[0]++], strings[data[position[0]++]]);
+                readComments(position, localVariable.comments);
+                method.localVariables.add(localVariable);
+            }
+
+            clazz.methods.add(method);
+        }
+
+        return clazz;
+    }
+
+    private void readComments(int[] position, List<CommentLine> comments) {
+        for (int i = data[position[0]++]; i > 0; i--) {
+            comments.add(new CommentLine(strings[data[position[0]++]]));
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[1024];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package knit.mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+public class DirectoryMappingStore implements MappingStore {
+    private final File directory;
+
+    public DirectoryMappingStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getFile(String mappingName) {
+        return new File(directory, mappingName + ".mapping");
+    }
+
+    @Override
+    public ClassMapping read(String mappingName) throws IOException, MappingSerializer.MappingFormatException {
+        File file = getFile(mappingName);
+        return file.exists() ? MappingSerializer.readClass(file) : null;
+    }
+
+    @Override
+    public ClassMapping readHeader(String mappingName, Consumer<Exception> loadErrorHandler) throws IOException, MappingSerializer.MappingFormatException {
+        File file = getFile(mappingName);
+        return file.exists() ? MappingSerializer.readClassHeader(file.toPath(), loadErrorHandler) : null;
+    }
+
+    @Override
+    public List<String> listMappingNames() throws IOException, MappingSerializer.MappingFormatException {
+        return MappingSerializer.listMappingNames(directory.toPath());
+    }
+
+    @Override
+    public Map<String, ClassMapping> readAll(Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException, MappingSerializer.MappingFormatException {
+        return MappingSerializer.readByName(directory.toPath(), executor, errors);
+    }
+
+    @Override
+    public void write(String mappingName, byte[] serializedClass) throws IOException {
+        File file = getFile(mappingName);
+        if (MappingSerializer.writeClass(file, serializedClass) && serializedClass == null) {
+            MappingSerializer.deleteEmptyDirectories(directory.toPath(), file.toPath().getParent());
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public long fingerprint() throws IOException {
+        return MappingSnapshot.fingerprint(directory);
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String toString() {
+        return directory.getAbsolutePath();
+    }
+}
@@ -4,14 +4,51 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class FieldMapping {
-    public String obfuscatedName;
-    public String obfuscatedDescriptor;
-    public String name;
+    static final MappingSet.Key<FieldMapping> KEY = new MappingSet.Key<FieldMapping>(FieldMapping.class) {
+        @Override
+        String getObfuscatedName(FieldMapping entry) {
+            return entry.obfuscatedName;
+        }
+
+        @Override
+        String getObfuscatedDescriptor(FieldMapping entry) {
+            return entry.obfuscatedDescriptor;
+        }
+
+        @Override
+        String getName(FieldMapping entry) {
+            return entry.name;
+        }
+
+        @Override
+        void setOwner(FieldMapping entry, MappingSet<FieldMapping> owner) {
+            entry.owner = owner;
+        }
+    };
+
+    public final String obfuscatedName;
+    public final String obfuscatedDescriptor;
+    private volatile String name;
     public final List<CommentLine> comments = new ArrayList<>();
+    private MappingSet<FieldMapping> owner = null;
 
     public FieldMapping(String obfuscatedName, String obfuscatedDescriptor, String name) {
         this.obfuscatedName = obfuscatedName;
         this.obfuscatedDescriptor = obfuscatedDescriptor;
         this.name = name;
     }
+
+    public String getName() {
+        return name;
+    }
+
+    // Renames go through the owning set so its name index stays current
+    public void setName(String name) {
+        String oldName = this.name;
+        this.name = name;
+
+        if (owner != null) {
+            owner.rename(this, oldName);
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package knit.mapping;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public abstract class FlatMappingVisitor extends MappingVisitor {
+    private final Deque<String> obfuscatedClassNames = new ArrayDeque<>();
+    private final Deque<String> classNames = new ArrayDeque<>();
+
+    @Override
+    public void visit(ClassMapping clazz) {
+        String obfuscatedClassName = obfuscatedClassNames.isEmpty() ? clazz.obfuscatedName : obfuscatedClassNames.peek() + "$" + clazz.obfuscatedName;
+        String className = classNames.isEmpty() ? clazz.getName() : classNames.peek() + "$" + clazz.getName();
+        obfuscatedClassNames.push(obfuscatedClassName);
+        classNames.push(className);
+
+        try {
+            visitClass(clazz, obfuscatedClassName, className);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        clazz.fields.forEach(this::visit);
+        clazz.methods.forEach(this::visit);
+        clazz.nestedClasses.forEach(this::visit);
+
+        obfuscatedClassNames.pop();
+        classNames.pop();
+    }
+
+    @Override
+    public void visit(FieldMapping field) {
+        try {
+            visitField(field);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void visit(MethodMapping method) {
+        try {
+            visitMethod(method);
+
+            for (LocalVariableMapping localVariable : method.localVariables) {
+                visitLocalVariable(method, localVariable);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected String getObfuscatedClassName() {
+        return obfuscatedClassNames.peek();
+    }
+
+    protected String getClassName() {
+        return classNames.peek();
+    }
+
+    protected abstract void visitClass(ClassMapping clazz, String obfuscatedName, String name) throws IOException;
+
+    protected void visitField(FieldMapping field) throws IOException {}
+
+    protected void visitMethod(MethodMapping method) throws IOException {}
+
+    protected void visitLocalVariable(MethodMapping method, LocalVariableMapping localVariable) throws IOException {}
+}
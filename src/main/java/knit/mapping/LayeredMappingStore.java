@@ -0,0 +1,431 @@
+package knit.mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Stacks mapping stores so that entries of later layers override those of earlier ones. An entry
+ * overrides the name below it only if it's mapped, and the comments below it only if it has any.
+ * Files are matched across layers by obfuscated class name and edits are written to the top layer.
+ */
+public class LayeredMappingStore implements MappingStore {
+    private static final int LOWER_CLASS_CACHE_SIZE = 4096;
+    private static final byte[] NO_CLASS = new byte[0];
+
+    private final List<MappingStore> layers;
+    private final List<Map<String, String>> layerMappingNames = new ArrayList<>();
+    private final List<Map<String, String>> layerNames = new ArrayList<>();
+    private final Map<String, String> obfuscatedNames = new HashMap<>();
+    private final Map<String, String> composedNames = new HashMap<>();
+    // Serialized composition of the layers below the top one, which this store never writes to
+    private final Map<String, byte[]> lowerClasses = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > LOWER_CLASS_CACHE_SIZE;
+        }
+    };
+
+    // Malformed headers are collected into errors and their files left out of the composition
+    public LayeredMappingStore(List<MappingStore> layers, Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException, MappingSerializer.MappingFormatException {
+        this.layers = new ArrayList<>(layers);
+
+        for (MappingStore layer : layers) {
+            List<String> layerFiles = layer.listMappingNames();
+            List<Object> headers = MappingSerializer.processInBatches(layerFiles, MappingSerializer.LOOKUP_BATCH_SIZE, executor, mappingName -> {
+                try {
+                    return layer.readHeader(mappingName, e -> {}); // only the header is used
+                } catch (MappingSerializer.MappingFormatException e) {
+                    return e;
+                }
+            });
+
+            Map<String, String> mappingNames = new HashMap<>();
+            Map<String, String> names = new HashMap<>();
+            for (int i = 0; i < headers.size(); i++) {
+                Object header = headers.get(i);
+                if (header instanceof MappingSerializer.MappingFormatException) {
+                    errors.add((MappingSerializer.MappingFormatException) header);
+                } else if (header != null) {
+                    ClassMapping clazz = (ClassMapping) header;
+                    mappingNames.put(clazz.obfuscatedName, layerFiles.get(i));
+                    names.put(clazz.obfuscatedName, clazz.getName());
+                }
+            }
+
+            layerMappingNames.add(mappingNames);
+            layerNames.add(names);
+        }
+
+        for (Map<String, String> names : layerNames) {
+            for (String obfuscatedName : names.keySet()) {
+                updateComposedName(obfuscatedName);
+            }
+        }
+    }
+
+    public List<MappingStore> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    private MappingStore getTopLayer() {
+        return layers.get(layers.size() - 1);
+    }
+
+    // Mapping names of a layer are where its files are, which isn't always the class name it maps to
+    private synchronized void updateComposedName(String obfuscatedName) {
+        String oldComposedName = composedNames.remove(obfuscatedName);
+        if (oldComposedName != null) {
+            obfuscatedNames.remove(oldComposedName);
+        }
+
+        String composedName = null;
+        for (Map<String, String> names : layerNames) {
+            String name = names.get(obfuscatedName);
+            if (name != null && (composedName == null || !name.equals(obfuscatedName))) {
+                composedName = name;
+            }
+        }
+
+        if (composedName != null) {
+            composedNames.put(obfuscatedName, composedName);
+            obfuscatedNames.put(composedName, obfuscatedName);
+        }
+    }
+
+    private synchronized List<String> getLayerMappingNames(String obfuscatedName, int layerCount) {
+        List<String> mappingNames = new ArrayList<>();
+        for (int i = 0; i < layerCount; i++) {
+            mappingNames.add(layerMappingNames.get(i).get(obfuscatedName));
+        }
+
+        return mappingNames;
+    }
+
+    private synchronized String getObfuscatedName(String mappingName) {
+        return obfuscatedNames.get(mappingName);
+    }
+
+    @Override
+    public ClassMapping read(String mappingName) throws IOException, MappingSerializer.MappingFormatException {
+        String obfuscatedName = getObfuscatedName(mappingName);
+        return obfuscatedName == null ? null : readComposed(obfuscatedName);
+    }
+
+    private ClassMapping readComposed(String obfuscatedName) throws IOException, MappingSerializer.MappingFormatException {
+        ClassMapping composed = readLower(obfuscatedName);
+        String topMappingName = getLayerMappingNames(obfuscatedName, layers.size()).get(layers.size() - 1);
+        ClassMapping topMapping = topMappingName == null ? null : getTopLayer().read(topMappingName);
+
+        if (topMapping != null) {
+            if (composed == null) {
+                composed = new ClassMapping(obfuscatedName, obfuscatedName);
+            }
+
+            overlay(composed, topMapping);
+        }
+
+        return composed;
+    }
+
+    // Returns a new copy each time, callers change the classes they get
+    private ClassMapping readLower(String obfuscatedName) throws IOException, MappingSerializer.MappingFormatException {
+        byte[] serializedClass;
+        synchronized (this) {
+            serializedClass = lowerClasses.get(obfuscatedName);
+        }
+
+        if (serializedClass == null) {
+            List<String> mappingNames = getLayerMappingNames(obfuscatedName, layers.size() - 1);
+            ClassMapping composed = null;
+
+            for (int i = 0; i < layers.size() - 1; i++) {
+                ClassMapping layerMapping = mappingNames.get(i) == null ? null : layers.get(i).read(mappingNames.get(i));
+                if (layerMapping != null) {
+                    if (composed == null) {
+                        composed = new ClassMapping(obfuscatedName, obfuscatedName);
+                    }
+
+                    overlay(composed, layerMapping);
+                }
+            }
+
+            // A class without any mapped entries composes the same as a missing one
+            serializedClass = composed == null ? null : MappingSerializer.serializeClass(composed);
+            if (serializedClass == null) {
+                serializedClass = NO_CLASS;
+            }
+
+            synchronized (this) {
+                lowerClasses.put(obfuscatedName, serializedClass);
+            }
+        }
+
+        return serializedClass == NO_CLASS ? null : MappingSerializer.deserializeClass(serializedClass);
+    }
+
+    @Override
+    public ClassMapping readHeader(String mappingName, Consumer<Exception> loadErrorHandler) throws IOException, MappingSerializer.MappingFormatException {
+        String obfuscatedName = getObfuscatedName(mappingName);
+        if (obfuscatedName == null) {
+            return null;
+        }
+
+        List<String> mappingNames = getLayerMappingNames(obfuscatedName, layers.size());
+        ClassMapping composed = new ClassMapping(obfuscatedName, obfuscatedName);
+        for (int i = 0; i < layers.size(); i++) {
+            ClassMapping header = mappingNames.get(i) == null ? null : layers.get(i).readHeader(mappingNames.get(i), loadErrorHandler);
+            if (header != null) {
+                overlayHeader(composed, header.getName(), header.obfuscatedName, header.comments);
+            }
+        }
+
+        composed.setMemberLoader(() -> {
+            ClassMapping loaded = readComposed(obfuscatedName);
+            return loaded == null ? new ClassMapping(obfuscatedName, obfuscatedName) : loaded;
+        }, loadErrorHandler);
+
+        return composed;
+    }
+
+    @Override
+    public synchronized List<String> listMappingNames() {
+        return new ArrayList<>(obfuscatedNames.keySet());
+    }
+
+    @Override
+    public Map<String, ClassMapping> readAll(Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException, MappingSerializer.MappingFormatException {
+        Map<String, ClassMapping> composedClasses = new LinkedHashMap<>();
+
+        for (MappingStore layer : layers) {
+            for (ClassMapping layerMapping : layer.readAll(executor, errors).values()) {
+                ClassMapping composed = composedClasses.get(layerMapping.obfuscatedName);
+                if (composed == null) {
+                    composed = new ClassMapping(layerMapping.obfuscatedName, layerMapping.obfuscatedName);
+                    composedClasses.put(layerMapping.obfuscatedName, composed);
+                }
+
+                overlay(composed, layerMapping);
+            }
+        }
+
+        return composedClasses.values().stream().collect(Collectors.toMap(clazz -> clazz.getName(), clazz -> clazz, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    /**
+     * Writes the entries of a composed class that differ from the layers below the top layer. Names
+     * and comments that are removed where a lower layer has some can't be expressed and reappear.
+     */
+    @Override
+    public void write(String mappingName, byte[] serializedClass) throws IOException {
+        String obfuscatedName;
+        ClassMapping difference = null;
+        byte[] serializedDifference = null;
+
+        if (serializedClass == null) {
+            obfuscatedName = getObfuscatedName(mappingName);
+            if (obfuscatedName == null) {
+                return;
+            }
+        } else {
+            try {
+                ClassMapping composed = MappingSerializer.deserializeClass(serializedClass);
+                obfuscatedName = composed.obfuscatedName;
+                ClassMapping lower = readLower(obfuscatedName);
+                difference = subtract(composed, lower);
+                serializedDifference = MappingSerializer.serializeClass(difference);
+            } catch (MappingSerializer.MappingFormatException e) {
+                throw new IOException(e.toString(), e);
+            }
+        }
+
+        int top = layers.size() - 1;
+        String oldTopMappingName = getLayerMappingNames(obfuscatedName, layers.size()).get(top);
+        if (serializedDifference == null) {
+            if (oldTopMappingName != null) {
+                getTopLayer().write(oldTopMappingName, null);
+            }
+        } else {
+            if (oldTopMappingName != null && !oldTopMappingName.equals(mappingName)) {
+                getTopLayer().write(oldTopMappingName, null);
+            }
+
+            getTopLayer().write(mappingName, serializedDifference);
+        }
+
+        synchronized (this) {
+            if (serializedDifference == null) {
+                layerMappingNames.get(top).remove(obfuscatedName);
+                layerNames.get(top).remove(obfuscatedName);
+            } else {
+                layerMappingNames.get(top).put(obfuscatedName, mappingName);
+                layerNames.get(top).put(obfuscatedName, difference.getName());
+            }
+
+            updateComposedName(obfuscatedName);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return getTopLayer().isReadOnly();
+    }
+
+    @Override
+    public long fingerprint() throws IOException {
+        long fingerprint = 1;
+        for (MappingStore layer : layers) {
+            fingerprint = fingerprint * 31 + layer.fingerprint();
+        }
+
+        return fingerprint;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (MappingStore layer : layers) {
+            try {
+                layer.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return layers.stream().map(Object::toString).collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private static boolean isMapped(String name, String obfuscatedName) {
+        return !name.equals(obfuscatedName);
+    }
+
+    private static void overlayHeader(ClassMapping composed, String name, String obfuscatedName, List<CommentLine> comments) {
+        if (isMapped(name, obfuscatedName)) {
+            composed.setName(name);
+        }
+
+        overlayComments(composed.comments, comments);
+    }
+
+    private static void overlayComments(List<CommentLine> composed, List<CommentLine> comments) {
+        if (!comments.isEmpty()) {
+            composed.clear();
+            composed.addAll(comments);
+        }
+    }
+
+    private static void overlay(ClassMapping composed, ClassMapping layer) {
+        overlayHeader(composed, layer.getName(), layer.obfuscatedName, layer.comments);
+
+        for (ClassMapping nestedClass : layer.nestedClasses) {
+            ClassMapping composedNestedClass = composed.nestedClasses.get(nestedClass.obfuscatedName, null);
+            if (composedNestedClass == null) {
+                composed.nestedClasses.add(nestedClass);
+            } else {
+                overlay(composedNestedClass, nestedClass);
+            }
+        }
+
+        for (FieldMapping field : layer.fields) {
+            FieldMapping composedField = composed.fields.get(field.obfuscatedName, field.obfuscatedDescriptor);
+            if (composedField == null) {
+                composed.fields.add(field);
+            } else {
+                if (isMapped(field.getName(), field.obfuscatedName)) {
+                    composedField.setName(field.getName());
+                }
+
+                overlayComments(composedField.comments, field.comments);
+            }
+        }
+
+        for (MethodMapping method : layer.methods) {
+            MethodMapping composedMethod = composed.methods.get(method.obfuscatedName, method.obfuscatedDescriptor);
+            if (composedMethod == null) {
+                composed.methods.add(method);
+                continue;
+            }
+
+            if (isMapped(method.getName(), method.obfuscatedName)) {
+                composedMethod.setName(method.getName());
+            }
+
+            overlayComments(composedMethod.comments, method.comments);
+
+            for (LocalVariableMapping localVariable : method.localVariables) {
+                LocalVariableMapping composedLocalVariable = composedMethod.localVariables.get(localVariable.index);
+                if (composedLocalVariable == null) {
+                    composedMethod.localVariables.add(localVariable);
+                } else {
+                    if (isMapped(localVariable.name, "arg" + localVariable.index)) {
+                        composedLocalVariable.name = localVariable.name;
+                    }
+
+                    overlayComments(composedLocalVariable.comments, localVariable.comments);
+                }
+            }
+        }
+    }
+
+    private static String subtractName(String name, String obfuscatedName, String lowerName) {
+        return lowerName != null && lowerName.equals(name) ? obfuscatedName : name;
+    }
+
+    private static void subtractComments(List<CommentLine> difference, List<CommentLine> comments, List<CommentLine> lowerComments) {
+        if (lowerComments == null || !getComments(comments).equals(getComments(lowerComments))) {
+            difference.addAll(comments);
+        }
+    }
+
+    private static List<String> getComments(List<CommentLine> comments) {
+        return comments.stream().map(comment -> comment.comment).collect(Collectors.toList());
+    }
+
+    // Serializing the result drops the entries that are left without a name or comments
+    private static ClassMapping subtract(ClassMapping composed, ClassMapping lower) {
+        ClassMapping difference = new ClassMapping(composed.obfuscatedName, subtractName(composed.getName(), composed.obfuscatedName, lower == null ? null : lower.getName()));
+        subtractComments(difference.comments, composed.comments, lower == null ? null : lower.comments);
+
+        for (ClassMapping nestedClass : composed.nestedClasses) {
+            difference.nestedClasses.add(subtract(nestedClass, lower == null ? null : lower.nestedClasses.get(nestedClass.obfuscatedName, null)));
+        }
+
+        for (FieldMapping field : composed.fields) {
+            FieldMapping lowerField = lower == null ? null : lower.fields.get(field.obfuscatedName, field.obfuscatedDescriptor);
+            FieldMapping fieldDifference = new FieldMapping(field.obfuscatedName, field.obfuscatedDescriptor, subtractName(field.getName(), field.obfuscatedName, lowerField == null ? null : lowerField.getName()));
+            subtractComments(fieldDifference.comments, field.comments, lowerField == null ? null : lowerField.comments);
+            difference.fields.add(fieldDifference);
+        }
+
+        for (MethodMapping method : composed.methods) {
+            MethodMapping lowerMethod = lower == null ? null : lower.methods.get(method.obfuscatedName, method.obfuscatedDescriptor);
+            MethodMapping methodDifference = new MethodMapping(method.obfuscatedName, method.obfuscatedDescriptor, subtractName(method.getName(), method.obfuscatedName, lowerMethod == null ? null : lowerMethod.getName()));
+            subtractComments(methodDifference.comments, method.comments, lowerMethod == null ? null : lowerMethod.comments);
+
+            for (LocalVariableMapping localVariable : method.localVariables) {
+                LocalVariableMapping lowerLocalVariable = lowerMethod == null ? null : lowerMethod.localVariables.get(localVariable.index);
+                LocalVariableMapping localVariableDifference = new LocalVariableMapping(localVariable.index, subtractName(localVariable.name, "arg" + localVariable.index, lowerLocalVariable == null ? null : lowerLocalVariable.name));
+                subtractComments(localVariableDifference.comments, localVariable.comments, lowerLocalVariable == null ? null : lowerLocalVariable.comments);
+                methodDifference.localVariables.add(localVariableDifference);
+            }
+
+            difference.methods.add(methodDifference);
+        }
+
+        return difference;
+    }
+}
@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class LocalVariableMapping {
-    public int index;
+    public final int index;
     public String name;
     public final List<CommentLine> comments = new ArrayList<>();
 
@@ -0,0 +1,76 @@
+package knit.mapping;
+
+import java.util.*;
+
+/**
+ * Local variables of a method, kept sorted by index.
+ */
+public class LocalVariableSet extends AbstractCollection<LocalVariableMapping> {
+    private final ArrayList<LocalVariableMapping> entries = new ArrayList<>(0);
+
+    public LocalVariableMapping get(int index) {
+        int position = find(index);
+        return position >= 0 ? entries.get(position) : null;
+    }
+
+    @Override
+    public boolean add(LocalVariableMapping localVariable) {
+        int position = find(localVariable.index);
+        if (position >= 0) {
+            return false;
+        }
+
+        entries.add(-position - 1, localVariable);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof LocalVariableMapping && get(((LocalVariableMapping) o).index) == o;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+
+        entries.remove(find(((LocalVariableMapping) o).index));
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Iterator<LocalVariableMapping> iterator() {
+        return entries.iterator();
+    }
+
+    private int find(int index) {
+        int low = 0;
+        int high = entries.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleIndex = entries.get(middle).index;
+
+            if (middleIndex < index) {
+                low = middle + 1;
+            } else if (middleIndex > index) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,315 @@
+package knit.mapping;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class MappingJournal implements Closeable {
+    private static final String CLASS_STEP = "CLASS";
+    private static final String FIELD_STEP = "FIELD";
+    private static final String METHOD_STEP = "METHOD";
+    private static final String LOCAL_VARIABLE_STEP = "ARG";
+    private static final int MAGIC = 0x4B4E4A52; // "KNJR"
+    private static final int HEADER_SIZE = 8;
+
+    private final Path file;
+    private final ByteBuffer fileHeader;
+    private FileChannel channel;
+    // Positions handed out stay valid across compactions, which drop everything before base
+    private long base = 0;
+
+    // The file starts with the path of the store it belongs to, a journal of another store is refused
+    public MappingJournal(File file, String storePath) throws IOException {
+        this.file = file.toPath();
+        file.getParentFile().mkdirs();
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(header)) {
+            output.writeInt(MAGIC);
+            output.writeUTF(storePath);
+        }
+        fileHeader = ByteBuffer.wrap(header.toByteArray());
+
+        channel = open(this.file);
+        try {
+            ByteBuffer existingHeader = ByteBuffer.allocate(fileHeader.capacity());
+            while (existingHeader.hasRemaining() && channel.read(existingHeader, existingHeader.position()) >= 0) {}
+            existingHeader.flip();
+
+            if (channel.size() < fileHeader.capacity()) { // new, or torn before the first entry
+                channel.truncate(0);
+                writeHeader(channel);
+            } else if (!existingHeader.equals(fileHeader)) {
+                throw new IOException(file + " is not the journal of " + storePath);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = fileHeader.duplicate();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public synchronized long append(Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(payload)) {
+            output.writeUTF(entry.mappingName);
+            output.writeShort(entry.path.size());
+            for (String step : entry.path) {
+                output.writeUTF(step);
+            }
+            output.writeUTF(entry.name);
+            output.writeShort(entry.comments.size());
+            for (String comment : entry.comments) {
+                output.writeUTF(comment);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.size());
+        record.putInt(payload.size());
+        record.putInt((int) crc.getValue());
+        record.put(payload.toByteArray());
+        record.flip();
+
+        long position = channel.size();
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+
+        return base + position;
+    }
+
+    public synchronized long size() throws IOException {
+        return base + channel.size();
+    }
+
+    public synchronized List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = fileHeader.capacity();
+        long size = channel.size();
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining() && channel.read(payload, position + HEADER_SIZE + payload.position()) >= 0) {}
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+                String mappingName = input.readUTF();
+                List<String> path = new ArrayList<>();
+                for (int i = input.readUnsignedShort(); i > 0; i--) {
+                    path.add(input.readUTF());
+                }
+                String name = input.readUTF();
+                List<String> comments = new ArrayList<>();
+                for (int i = input.readUnsignedShort(); i > 0; i--) {
+                    comments.add(input.readUTF());
+                }
+
+                entries.add(new Entry(mappingName, path, name, comments));
+            } catch (EOFException | UTFDataFormatException e) {
+                break;
+            }
+
+            position += HEADER_SIZE + length;
+        }
+
+        if (position != size) { // torn write from a crash
+            channel.truncate(position);
+        }
+
+        return entries;
+    }
+
+    public synchronized void compact(long compactedPosition) throws IOException {
+        long position = compactedPosition - base;
+        long size = channel.size();
+        int headerSize = fileHeader.capacity();
+
+        if (position <= headerSize) {
+            return;
+        }
+
+        if (position >= size) {
+            channel.truncate(headerSize);
+            base += size - headerSize;
+            return;
+        }
+
+        Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel output = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                writeHeader(output);
+                output.position(headerSize);
+                long transferred = 0;
+                while (transferred < size - position) {
+                    transferred += channel.transferTo(position + transferred, size - position - transferred, output);
+                }
+            }
+
+            channel.close();
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            base = compactedPosition - headerSize;
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+
+            if (!channel.isOpen()) {
+                channel = open(file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    public static String classStep(ClassMapping clazz) {
+        return CLASS_STEP + " " + clazz.obfuscatedName;
+    }
+
+    public static String fieldStep(FieldMapping field) {
+        return FIELD_STEP + " " + field.obfuscatedName + " " + field.obfuscatedDescriptor;
+    }
+
+    public static String methodStep(MethodMapping method) {
+        return METHOD_STEP + " " + method.obfuscatedName + " " + method.obfuscatedDescriptor;
+    }
+
+    public static String localVariableStep(LocalVariableMapping localVariable) {
+        return LOCAL_VARIABLE_STEP + " " + localVariable.index;
+    }
+
+    public static class Entry {
+        public final String mappingName;
+        public final List<String> path;
+        public final String name;
+        public final List<String> comments;
+
+        public Entry(String mappingName, List<String> path, String name, List<String> comments) {
+            this.mappingName = mappingName;
+            this.path = Collections.unmodifiableList(path);
+            this.name = name;
+            this.comments = Collections.unmodifiableList(comments);
+        }
+
+        public boolean targetsClass() {
+            return path.isEmpty() || path.get(path.size() - 1).startsWith(CLASS_STEP + " ");
+        }
+
+        public void apply(ClassMapping rootClass) {
+            ClassMapping clazz = rootClass;
+            MethodMapping method = null;
+            Object target = rootClass;
+
+            for (String step : path) {
+                String[] split = step.split(" ");
+                switch (split[0]) {
+                    case CLASS_STEP: {
+                        ClassMapping nestedClass = clazz.nestedClasses.get(split[1], null);
+                        if (nestedClass == null) {
+                            nestedClass = new ClassMapping(split[1], split[1]);
+                            clazz.nestedClasses.add(nestedClass);
+                        }
+
+                        target = clazz = nestedClass;
+                        break;
+                    }
+
+                    case FIELD_STEP: {
+                        FieldMapping field = clazz.fields.get(split[1], split[2]);
+                        if (field == null) {
+                            field = new FieldMapping(split[1], split[2], split[1]);
+                            clazz.fields.add(field);
+                        }
+
+                        target = field;
+                        break;
+                    }
+
+                    case METHOD_STEP: {
+                        method = clazz.methods.get(split[1], split[2]);
+                        if (method == null) {
+                            method = new MethodMapping(split[1], split[2], split[1]);
+                            clazz.methods.add(method);
+                        }
+
+                        target = method;
+                        break;
+                    }
+
+                    case LOCAL_VARIABLE_STEP: {
+                        int index = Integer.parseInt(split[1]);
+                        LocalVariableMapping localVariable = method.localVariables.get(index);
+                        if (localVariable == null) {
+                            localVariable = new LocalVariableMapping(index, "arg" + index);
+                            method.localVariables.add(localVariable);
+                        }
+
+                        target = localVariable;
+                        break;
+                    }
+
+                    default: {
+                        throw new IllegalArgumentException("unknown journal step " + step);
+                    }
+                }
+            }
+
+            List<CommentLine> targetComments;
+            if (target instanceof ClassMapping) {
+                ((ClassMapping) target).setName(name);
+                targetComments = ((ClassMapping) target).comments;
+            } else if (target instanceof FieldMapping) {
+                ((FieldMapping) target).setName(name);
+                targetComments = ((FieldMapping) target).comments;
+            } else if (target instanceof MethodMapping) {
+                ((MethodMapping) target).setName(name);
+                targetComments = ((MethodMapping) target).comments;
+            } else {
+                ((LocalVariableMapping) target).name = name;
+                targetComments = ((LocalVariableMapping) target).comments;
+            }
+
+            targetComments.clear();
+            for (String comment : comments) {
+                targetComments.add(new CommentLine(comment));
+            }
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package knit.mapping;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MappingSerializer {
     private static final String CLASS_LABEL = "CLASS";
@@ -15,47 +30,95 @@ public class MappingSerializer {
     private static final String METHOD_LABEL = "METHOD";
     private static final String LOCAL_VARIABLE_LABEL = "ARG";
     private static final String COMMENT_LABEL = "JAVADOC";
+    private static final int MAX_TOKENS = 3;
+    private static final int PARALLEL_BATCH_SIZE = 64;
+    static final int LOOKUP_BATCH_SIZE = 16; // a few files looked up by name still spread over threads
+    private static final int PARALLEL_CHUNK_SIZE = 256 * 1024;
+
 
     public static void write(Iterable<ClassMapping> classes, File file) throws IOException {
-        Files.walk(file.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        Set<Path> classFiles = new HashSet<>();
 
         for (ClassMapping clazz : classes) {
-            File mappingFile = new File(file, clazz.name + ".mapping");
-            mappingFile.getParentFile().mkdirs();
-            writeClass(mappingFile, clazz);
+            File mappingFile = new File(file, clazz.getName() + ".mapping");
+            if (writeClass(mappingFile, clazz) && !mappingFile.exists()) {
+                deleteEmptyDirectories(file.toPath(), mappingFile.toPath().getParent());
+            }
+
+            classFiles.add(mappingFile.toPath());
         }
-    }
 
-    public static void writeClass(File file, ClassMapping rootClass) throws IOException {
-        rootClass = simplify(rootClass);
+        List<Path> removedFiles;
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            removedFiles = paths.filter(path -> path.toString().endsWith(".mapping") && !classFiles.contains(path) && Files.isRegularFile(path))
+                                .collect(Collectors.toList());
+        }
 
-        if (rootClass == null) {
-            if (file.exists()) {
-                Files.delete(file.toPath());
-                while (file.getParentFile().listFiles().length == 0) {
-                    file = file.getParentFile();
-                    Files.delete(file.toPath());
-                }
+        for (Path removedFile : removedFiles) {
+            Files.delete(removedFile);
+            deleteEmptyDirectories(file.toPath(), removedFile.getParent());
+        }
+    }
+
+    // Deletes directory and then its parents while they are empty, stopping below root. Safe to run concurrently on the same directories.
+    public static void deleteEmptyDirectories(Path root, Path directory) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        directory = directory.toAbsolutePath().normalize();
+
+        while (directory.startsWith(root) && !directory.equals(root)) {
+            try {
+                Files.delete(directory);
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            } catch (NoSuchFileException e) {
+                // already deleted, its parent may be empty now
             }
 
-            return;
+            directory = directory.getParent();
+        }
+    }
+
+    public static boolean writeClass(File file, ClassMapping rootClass) throws IOException {
+        return writeClass(file, serializeClass(rootClass));
+    }
+
+    // A null class deletes the file, callers delete directories left empty with deleteEmptyDirectories
+    public static boolean writeClass(File file, byte[] serializedClass) throws IOException {
+        if (serializedClass == null) {
+            return Files.deleteIfExists(file.toPath());
+        }
+
+        if (file.length() == serializedClass.length && Arrays.equals(Files.readAllBytes(file.toPath()), serializedClass)) {
+            return false;
         }
 
         file.getParentFile().mkdirs();
-        try (FileWriter writer = new FileWriter(file)) {
+        Files.write(file.toPath(), serializedClass);
+        return true;
+    }
+
+    public static byte[] serializeClass(ClassMapping rootClass) {
+        if (isEmpty(rootClass)) {
+            return null;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
             TreeSerializer.<Object>write(writer, rootClass, mapping -> {
                 List<Object> children = new ArrayList<>();
 
                 if (mapping instanceof ClassMapping) {
-                    children.addAll(((ClassMapping) mapping).comments);
-                    ((ClassMapping) mapping).nestedClasses.stream().sorted(Comparator.comparing(e -> e.obfuscatedName, MappingSerializer::compare)).forEach(children::add);
-                    ((ClassMapping) mapping).fields.stream().sorted(Comparator.comparing(e -> e.obfuscatedName + e.obfuscatedDescriptor)).forEach(children::add);
-                    ((ClassMapping) mapping).methods.stream().sorted(Comparator.comparing(e -> e.obfuscatedName + e.obfuscatedDescriptor)).forEach(children::add);
+                    ClassMapping clazz = (ClassMapping) mapping;
+                    children.addAll(clazz.comments);
+                    addNonEmpty(children, clazz.nestedClasses, nestedClass -> !isEmpty(nestedClass));
+                    addNonEmpty(children, clazz.fields, field -> !isEmpty(field));
+                    addNonEmpty(children, clazz.methods, method -> !isEmpty(method));
                 }
 
                 if (mapping instanceof MethodMapping) {
-                    children.addAll(((MethodMapping) mapping).comments);
-                    ((MethodMapping) mapping).localVariables.stream().sorted(Comparator.comparingInt(e -> e.index)).forEach(children::add);
+                    MethodMapping method = (MethodMapping) mapping;
+                    children.addAll(method.comments);
+                    addNonEmpty(children, method.localVariables, localVariable -> !isEmpty(localVariable));
                 }
 
                 if (mapping instanceof FieldMapping) {
@@ -70,17 +133,17 @@ public class MappingSerializer {
             }, mapping -> {
                 if (mapping instanceof ClassMapping) {
                     ClassMapping clazz = (ClassMapping) mapping;
-                    return CLASS_LABEL + " " + formatName(clazz.obfuscatedName, clazz.name);
+                    return CLASS_LABEL + " " + formatName(clazz.obfuscatedName, clazz.getName());
                 }
 
                 if (mapping instanceof FieldMapping) {
                     FieldMapping field = (FieldMapping) mapping;
-                    return FIELD_LABEL + " " + formatName(field.obfuscatedName, field.name) + " " + field.obfuscatedDescriptor;
+                    return FIELD_LABEL + " " + formatName(field.obfuscatedName, field.getName()) + " " + field.obfuscatedDescriptor;
                 }
 
                 if (mapping instanceof MethodMapping) {
                     MethodMapping method = (MethodMapping) mapping;
-                    return METHOD_LABEL + " " + formatName(method.obfuscatedName, method.name) + " " + method.obfuscatedDescriptor;
+                    return METHOD_LABEL + " " + formatName(method.obfuscatedName, method.getName()) + " " + method.obfuscatedDescriptor;
                 }
 
                 if (mapping instanceof LocalVariableMapping) {
@@ -98,41 +161,67 @@ public class MappingSerializer {
 
                 throw new AssertionError("unknown mapping type" + mapping.getClass());
             });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-    }
 
-    private static ClassMapping simplify(ClassMapping clazz) {
-        ClassMapping simplified = new ClassMapping(clazz.obfuscatedName, clazz.name);
-        boolean hasChildren = false;
-        hasChildren |= simplified.nestedClasses.addAll(clazz.nestedClasses.stream().map(MappingSerializer::simplify).filter(Objects::nonNull).collect(Collectors.toSet()));
-        hasChildren |= simplified.methods.addAll(clazz.methods.stream().map(MappingSerializer::simplify).filter(Objects::nonNull).collect(Collectors.toSet()));
-        hasChildren |= simplified.fields.addAll(clazz.fields.stream().map(MappingSerializer::simplify).filter(Objects::nonNull).collect(Collectors.toSet()));
-        hasChildren |= simplified.comments.addAll(clazz.comments);
-        return hasChildren || !clazz.name.equals(clazz.obfuscatedName) ? simplified : null;
+        return output.toByteArray();
     }
 
-    private static MethodMapping simplify(MethodMapping method) {
-        MethodMapping simplified = new MethodMapping(method.obfuscatedName, method.obfuscatedDescriptor, method.name);
-        boolean hasChildren = false;
-        hasChildren |= simplified.localVariables.addAll(method.localVariables.stream().map(MappingSerializer::simplify).filter(Objects::nonNull).collect(Collectors.toSet()));
-        hasChildren |= simplified.comments.addAll(method.comments);
-        return hasChildren || !method.name.equals(method.obfuscatedName) ? simplified : null;
+    private static <E> void addNonEmpty(List<Object> children, Collection<E> mappings, Predicate<E> filter) {
+        for (E mapping : mappings) {
+            if (filter.test(mapping)) {
+                children.add(mapping);
+            }
+        }
     }
 
-    private static FieldMapping simplify(FieldMapping field) {
-        return !field.name.equals(field.obfuscatedName) || !field.comments.isEmpty() ? field : null;
-    }
+    private static boolean isEmpty(ClassMapping clazz) {
+        if (!clazz.getName().equals(clazz.obfuscatedName) || !clazz.comments.isEmpty()) {
+            return false;
+        }
 
-    private static LocalVariableMapping simplify(LocalVariableMapping localVariable) {
-        return !localVariable.name.equals("arg" + localVariable.index) || !localVariable.comments.isEmpty() ? localVariable : null;
+        for (ClassMapping nestedClass : clazz.nestedClasses) {
+            if (!isEmpty(nestedClass)) {
+                return false;
+            }
+        }
+
+        for (MethodMapping method : clazz.methods) {
+            if (!isEmpty(method)) {
+                return false;
+            }
+        }
+
+        for (FieldMapping field : clazz.fields) {
+            if (!isEmpty(field)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    private static int compare(String a, String b) {
-        if (a.length() != b.length()) {
-            return a.length() - b.length();
+    private static boolean isEmpty(MethodMapping method) {
+        if (!method.getName().equals(method.obfuscatedName) || !method.comments.isEmpty()) {
+            return false;
+        }
+
+        for (LocalVariableMapping localVariable : method.localVariables) {
+            if (!isEmpty(localVariable)) {
+                return false;
+            }
         }
 
-        return a.compareTo(b);
+        return true;
+    }
+
+    private static boolean isEmpty(FieldMapping field) {
+        return field.getName().equals(field.obfuscatedName) && field.comments.isEmpty();
+    }
+
+    private static boolean isEmpty(LocalVariableMapping localVariable) {
+        return localVariable.name.equals("arg" + localVariable.index) && localVariable.comments.isEmpty();
     }
 
     private static String formatName(String obfuscatedName, String name) {
@@ -140,127 +229,273 @@ public class MappingSerializer {
     }
 
     public static Set<ClassMapping> read(File file) throws MappingFormatException, IOException {
-        if (!file.isDirectory()) {
-            throw new MappingFormatException("not a directory", file);
-        }
-
         Set<ClassMapping> classes = new LinkedHashSet<>();
 
-        for (File classFile : Files.walk(file.toPath()).map(Path::toFile).filter(File::isFile).collect(Collectors.toList())) {
+        for (Path classFile : getClassFiles(file.toPath())) {
             classes.add(readClass(classFile));
         }
 
         return classes;
     }
 
-    public static ClassMapping readClass(File file) throws IOException, MappingFormatException {
-        try (FileReader reader = new FileReader(file)) {
-            List<Object> result = TreeSerializer.read(reader, (label, children, line) -> {
-                String[] split = label.split(" ");
-                switch (split[0]) {
-                    case CLASS_LABEL: {
-                        ClassMapping clazz;
-                        if (split.length == 2) {
-                            clazz = new ClassMapping(split[1], split[1]);
-                        } else if (split.length == 3) {
-                            clazz = new ClassMapping(split[1], split[2]);
-                        } else {
-                            throw new TreeSerializer.ParseException("invalid class entry", line);
-                        }
+    public static void read(Path directory, MappingVisitor visitor) throws MappingFormatException, IOException {
+        for (Path classFile : getClassFiles(directory)) {
+            visitor.visit(readClass(classFile));
+        }
+    }
 
-                        for (Object child : children) {
-                            if (child instanceof ClassMapping) {
-                                clazz.nestedClasses.add((ClassMapping) child);
-                            } else if (child instanceof MethodMapping) {
-                                clazz.methods.add((MethodMapping) child);
-                            } else if (child instanceof FieldMapping) {
-                                clazz.fields.add((FieldMapping) child);
-                            } else if (child instanceof CommentLine) {
-                                clazz.comments.add((CommentLine) child);
-                            } else {
-                                throw new TreeSerializer.ParseException("class entry has invalid child", line);
-                            }
-                        }
+    public static Set<ClassMapping> read(File file, Executor executor) throws MappingFormatException, IOException {
+        return new LinkedHashSet<>(readByName(file.toPath(), executor).values());
+    }
 
-                        return clazz;
-                    }
+    public static Map<String, ClassMapping> readByName(File file, Executor executor) throws MappingFormatException, IOException {
+        return readByName(file.toPath(), executor);
+    }
 
-                    case FIELD_LABEL: {
-                        FieldMapping field;
-                        if (split.length == 3) {
-                            field = new FieldMapping(split[1], split[2], split[1]);
-                        } else if (split.length == 4) {
-                            field = new FieldMapping(split[1], split[3], split[2]);
-                        } else {
-                            throw new TreeSerializer.ParseException("invalid field entry", line);
-                        }
+    public static Map<String, ClassMapping> readByName(Path directory, Executor executor) throws MappingFormatException, IOException {
+        return readByName(directory, executor, null);
+    }
 
-                        for (Object child : children) {
-                            if (child instanceof CommentLine) {
-                                field.comments.add((CommentLine) child);
-                            } else {
-                                throw new TreeSerializer.ParseException("field entry has invalid child", line);
-                            }
-                        }
+    // Collects format errors into errors and skips those files, or throws them all at the end if errors is null
+    public static Map<String, ClassMapping> readByName(Path directory, Executor executor, List<MappingFormatException> errors) throws MappingFormatException, IOException {
+        List<Path> classFiles = getClassFiles(directory);
+        List<Object> results = processInBatches(classFiles, PARALLEL_BATCH_SIZE, executor, classFile -> {
+            try {
+                return readClass(classFile);
+            } catch (MappingFormatException e) {
+                return e;
+            }
+        });
 
-                        return field;
-                    }
+        Map<String, ClassMapping> classes = new LinkedHashMap<>();
+        MappingFormatException formatException = null;
+        Iterator<Path> classFileIterator = classFiles.iterator();
 
-                    case METHOD_LABEL: {
-                        MethodMapping method;
-                        if (split.length == 3) {
-                            method = new MethodMapping(split[1], split[2], split[1]);
-                        } else if (split.length == 4) {
-                            method = new MethodMapping(split[1], split[3], split[2]);
-                        } else {
-                            throw new TreeSerializer.ParseException("invalid method entry", line);
-                        }
+        for (Object result : results) {
+            String name = getMappingName(directory, classFileIterator.next());
 
-                        for (Object child : children) {
-                            if (child instanceof LocalVariableMapping) {
-                                method.localVariables.add((LocalVariableMapping) child);
-                            } else if (child instanceof CommentLine) {
-                                method.comments.add((CommentLine) child);
-                            } else {
-                                throw new TreeSerializer.ParseException("method entry has invalid child", line);
-                            }
-                        }
+            if (result instanceof ClassMapping) {
+                classes.put(name, (ClassMapping) result);
+            } else if (errors != null) {
+                errors.add((MappingFormatException) result);
+            } else if (formatException == null) {
+                formatException = (MappingFormatException) result;
+            } else {
+                formatException.addSuppressed((MappingFormatException) result);
+            }
+        }
 
-                        return method;
-                    }
+        if (formatException != null) {
+            throw formatException;
+        }
 
-                    case LOCAL_VARIABLE_LABEL: {
-                        LocalVariableMapping localVariable;
-                        if (split.length == 3) {
-                            int index;
-                            try {
-                                index = Integer.parseInt(split[1]);
-                            } catch (NumberFormatException e) {
-                                throw new TreeSerializer.ParseException("argument index not a number", line);
-                            }
-
-                            localVariable = new LocalVariableMapping(index, split[2]);
-                        } else {
-                            throw new TreeSerializer.ParseException("invalid local variable entry", line);
-                        }
+        return classes;
+    }
 
-                        for (Object child : children) {
-                            if (child instanceof CommentLine) {
-                                localVariable.comments.add((CommentLine) child);
-                            } else {
-                                throw new TreeSerializer.ParseException("field entry has invalid child", line);
-                            }
-                        }
+    public static Set<ClassMapping> readSingleFile(Path file, Executor executor) throws MappingFormatException, IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        List<int[]> chunks = new ArrayList<>(); // start, length and first line
+        int start = 0;
+        int line = 1;
 
-                        return localVariable;
+        // Split at top-level CLASS lines so each chunk parses independently
+        while (start < bytes.length) {
+            int end = start;
+            int lineCount = 0;
+
+            while (end < bytes.length) {
+                if (bytes[end++] == '\n') {
+                    lineCount++;
+
+                    if (end - start >= PARALLEL_CHUNK_SIZE && isClassLine(bytes, end)) {
+                        break;
                     }
+                }
+            }
+
+            chunks.add(new int[] {start, end - start, line});
+            start = end;
+            line += lineCount;
+        }
+
+        List<Object> results = processInBatches(chunks, 1, executor, chunk -> {
+            try {
+                return readEntries(Channels.newChannel(new ByteArrayInputStream(bytes, chunk[0], chunk[1])), chunk[2]);
+            } catch (TreeSerializer.ParseException e) {
+                return e;
+            }
+        });
 
+        Set<ClassMapping> classes = new LinkedHashSet<>();
+        Set<String> obfuscatedNames = new HashSet<>();
+        List<TreeSerializer.ParseException> parseExceptions = new ArrayList<>();
+
+        for (int i = 0; i < results.size(); i++) {
+            Object result = results.get(i);
+            if (result instanceof TreeSerializer.ParseException) {
+                parseExceptions.add((TreeSerializer.ParseException) result);
+                continue;
+            }
 
-                    default: {
-                        throw new TreeSerializer.ParseException("unknown entry type", line);
+            List<?> entries = (List<?>) result;
+            for (int j = 0; j < entries.size(); j++) {
+                if (!(entries.get(j) instanceof ClassMapping)) {
+                    throw new MappingFormatException("top-level entry isn't a class entry", file);
+                }
+
+                ClassMapping clazz = (ClassMapping) entries.get(j);
+                if (obfuscatedNames.add(clazz.obfuscatedName)) {
+                    classes.add(clazz);
+                } else {
+                    parseExceptions.add(new TreeSerializer.ParseException("duplicate class entry " + clazz.obfuscatedName, getTopLevelLine(bytes, chunks.get(i), j)));
+                }
+            }
+        }
+
+        MappingFormatException formatException = null;
+        for (TreeSerializer.ParseException parseException : parseExceptions) {
+            MappingFormatException exception = new MappingFormatException(parseException, file);
+
+            if (formatException == null) {
+                formatException = exception;
+            } else {
+                formatException.addSuppressed(exception);
+            }
+        }
+
+        if (formatException != null) {
+            throw formatException;
+        }
+
+        if (classes.isEmpty()) {
+            throw new MappingFormatException("empty file", file);
+        }
+
+        return classes;
+    }
+
+    // Only searched again to report an error, chunks don't keep the lines of their entries
+    private static int getTopLevelLine(byte[] bytes, int[] chunk, int index) {
+        int end = chunk[0] + chunk[1];
+        int line = chunk[2];
+
+        for (int position = chunk[0]; position < end; line++) {
+            if (bytes[position] != '\t' && index-- == 0) {
+                return line;
+            }
+
+            while (position < end && bytes[position++] != '\n') {}
+        }
+
+        return -1;
+    }
+
+    public interface BatchTask<T, R> {
+        R apply(T input) throws IOException;
+    }
+
+    // Runs the task on the inputs in parallel batches and returns the results in input order, rethrowing IOExceptions
+    public static <T, R> List<R> processInBatches(List<T> inputs, int batchSize, Executor executor, BatchTask<T, R> task) throws IOException {
+        List<CompletableFuture<List<R>>> futures = new ArrayList<>();
+
+        for (int start = 0; start < inputs.size(); start += batchSize) {
+            List<T> batch = inputs.subList(start, Math.min(start + batchSize, inputs.size()));
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<R> results = new ArrayList<>(batch.size());
+
+                for (T input : batch) {
+                    try {
+                        results.add(task.apply(input));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
                 }
-            });
+
+                return results;
+            }, executor));
+        }
+
+        List<R> results = new ArrayList<>(inputs.size());
+        for (CompletableFuture<List<R>> future : futures) {
+            try {
+                results.addAll(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        return results;
+    }
+
+    private static boolean isClassLine(byte[] bytes, int start) {
+        int end = start + CLASS_LABEL.length();
+        if (end >= bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < CLASS_LABEL.length(); i++) {
+            if (bytes[start + i] != CLASS_LABEL.charAt(i)) {
+                return false;
+            }
+        }
+
+        return bytes[end] == ' ' || bytes[end] == '\r' || bytes[end] == '\n';
+    }
+
+    public static String getMappingName(Path directory, Path classFile) {
+        String path = directory.relativize(classFile).toString().replace(classFile.getFileSystem().getSeparator(), "/");
+        return path.substring(0, path.length() - ".mapping".length());
+    }
+
+    public static List<String> listMappingNames(Path directory) throws MappingFormatException, IOException {
+        List<String> mappingNames = new ArrayList<>();
+        for (Path classFile : getClassFiles(directory)) {
+            mappingNames.add(getMappingName(directory, classFile));
+        }
+
+        return mappingNames;
+    }
+
+    private static List<Path> getClassFiles(Path directory) throws MappingFormatException, IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new MappingFormatException("not a directory", directory);
+        }
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(classFile -> classFile.toString().endsWith(".mapping") && Files.isRegularFile(classFile))
+                        .collect(Collectors.toList());
+        }
+    }
+
+    public static ClassMapping readClass(File file) throws IOException, MappingFormatException {
+        return readClass(file.toPath());
+    }
+
+    public static ClassMapping readClass(Path file) throws IOException, MappingFormatException {
+        try (ReadableByteChannel channel = Files.newByteChannel(file)) {
+            return readClass(channel, file);
+        }
+    }
+
+    public static ClassMapping deserializeClass(byte[] serializedClass) throws MappingFormatException {
+        try {
+            return readClass(Channels.newChannel(new ByteArrayInputStream(serializedClass)), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ClassMapping readClass(ReadableByteChannel channel, Path file) throws IOException, MappingFormatException {
+        try {
+            List<Object> result = readEntries(channel, 1);
+
+            if (result.isEmpty()) {
+                throw new MappingFormatException("empty file", file);
+            }
 
             if (result.size() > 1) {
                 throw new MappingFormatException("two top-level entries in the same file", file);
@@ -276,17 +511,211 @@ public class MappingSerializer {
         }
     }
 
+    // Reads the CLASS line and its comments; members are parsed on first access
+    public static ClassMapping readClassHeader(Path file, Consumer<Exception> loadErrorHandler) throws IOException, MappingFormatException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new MappingFormatException("empty file", file);
+            }
+
+            String[] tokens = new String[MAX_TOKENS];
+            int typeEnd = line.indexOf(' ');
+            if (typeEnd == -1) {
+                typeEnd = line.length();
+            }
+
+            int tokenCount = tokenize(line, typeEnd + 1, tokens);
+
+            if (!isLabel(line, typeEnd, CLASS_LABEL) || tokenCount != 1 && tokenCount != 2) {
+                throw new MappingFormatException(new TreeSerializer.ParseException("invalid class entry", 1), file);
+            }
+
+            ClassMapping clazz = new ClassMapping(tokens[0], tokenCount == 2 ? tokens[1] : tokens[0]);
+
+            String commentPrefix = "\t" + COMMENT_LABEL;
+            while ((line = reader.readLine()) != null && line.startsWith(commentPrefix)) {
+                if (line.length() == commentPrefix.length()) {
+                    clazz.comments.add(new CommentLine(""));
+                } else if (line.charAt(commentPrefix.length()) == ' ') {
+                    clazz.comments.add(new CommentLine(line.substring(commentPrefix.length() + 1)));
+                } else {
+                    break;
+                }
+            }
+
+            clazz.setMemberLoader(() -> readClass(file), loadErrorHandler);
+
+            return clazz;
+        }
+    }
+
+    private static List<Object> readEntries(ReadableByteChannel channel, int firstLine) throws TreeSerializer.ParseException, IOException {
+        String[] tokens = new String[MAX_TOKENS];
+        return TreeSerializer.read(channel, (label, children, line) -> {
+            int typeEnd = label.indexOf(' ');
+            if (typeEnd == -1) {
+                typeEnd = label.length();
+            }
+
+            if (isLabel(label, typeEnd, COMMENT_LABEL)) {
+                if (!children.isEmpty()) {
+                    throw new TreeSerializer.ParseException("comment entry has children", line);
+                }
+
+                return new CommentLine(typeEnd == label.length() ? "" : label.substring(typeEnd + 1));
+            }
+
+            int tokenCount = tokenize(label, typeEnd + 1, tokens);
+
+            if (isLabel(label, typeEnd, CLASS_LABEL)) {
+                ClassMapping clazz;
+                if (tokenCount == 1) {
+                    clazz = new ClassMapping(tokens[0], tokens[0]);
+                } else if (tokenCount == 2) {
+                    clazz = new ClassMapping(tokens[0], tokens[1]);
+                } else {
+                    throw new TreeSerializer.ParseException("invalid class entry", line);
+                }
+
+                for (Object child : children) {
+                    if (child instanceof ClassMapping) {
+                        if (!clazz.nestedClasses.add((ClassMapping) child)) {
+                            throw new TreeSerializer.ParseException("duplicate class entry " + ((ClassMapping) child).obfuscatedName, line);
+                        }
+                    } else if (child instanceof MethodMapping) {
+                        if (!clazz.methods.add((MethodMapping) child)) {
+                            throw new TreeSerializer.ParseException("duplicate method entry " + ((MethodMapping) child).obfuscatedName, line);
+                        }
+                    } else if (child instanceof FieldMapping) {
+                        if (!clazz.fields.add((FieldMapping) child)) {
+                            throw new TreeSerializer.ParseException("duplicate field entry " + ((FieldMapping) child).obfuscatedName, line);
+                        }
+                    } else if (child instanceof CommentLine) {
+                        clazz.comments.add((CommentLine) child);
+                    } else {
+                        throw new TreeSerializer.ParseException("class entry has invalid child", line);
+                    }
+                }
+
+                return clazz;
+            }
+
+            if (isLabel(label, typeEnd, FIELD_LABEL)) {
+                FieldMapping field;
+                if (tokenCount == 2) {
+                    field = new FieldMapping(tokens[0], tokens[1], tokens[0]);
+                } else if (tokenCount == 3) {
+                    field = new FieldMapping(tokens[0], tokens[2], tokens[1]);
+                } else {
+                    throw new TreeSerializer.ParseException("invalid field entry", line);
+                }
+
+                for (Object child : children) {
+                    if (child instanceof CommentLine) {
+                        field.comments.add((CommentLine) child);
+                    } else {
+                        throw new TreeSerializer.ParseException("field entry has invalid child", line);
+                    }
+                }
+
+                return field;
+            }
+
+            if (isLabel(label, typeEnd, METHOD_LABEL)) {
+                MethodMapping method;
+                if (tokenCount == 2) {
+                    method = new MethodMapping(tokens[0], tokens[1], tokens[0]);
+                } else if (tokenCount == 3) {
+                    method = new MethodMapping(tokens[0], tokens[2], tokens[1]);
+                } else {
+                    throw new TreeSerializer.ParseException("invalid method entry", line);
+                }
+
+                for (Object child : children) {
+                    if (child instanceof LocalVariableMapping) {
+                        if (!method.localVariables.add((LocalVariableMapping) child)) {
+                            throw new TreeSerializer.ParseException("duplicate local variable entry " + ((LocalVariableMapping) child).index, line);
+                        }
+                    } else if (child instanceof CommentLine) {
+                        method.comments.add((CommentLine) child);
+                    } else {
+                        throw new TreeSerializer.ParseException("method entry has invalid child", line);
+                    }
+                }
+
+                return method;
+            }
+
+            if (isLabel(label, typeEnd, LOCAL_VARIABLE_LABEL)) {
+                LocalVariableMapping localVariable;
+                if (tokenCount == 1 || tokenCount == 2) {
+                    int index;
+                    try {
+                        index = Integer.parseInt(tokens[0]);
+                    } catch (NumberFormatException e) {
+                        throw new TreeSerializer.ParseException("argument index not a number", line);
+                    }
+
+                    localVariable = new LocalVariableMapping(index, tokenCount == 2 ? tokens[1] : "arg" + index);
+                } else {
+                    throw new TreeSerializer.ParseException("invalid local variable entry", line);
+                }
+
+                for (Object child : children) {
+                    if (child instanceof CommentLine) {
+                        localVariable.comments.add((CommentLine) child);
+                    } else {
+                        throw new TreeSerializer.ParseException("local variable entry has invalid child", line);
+                    }
+                }
+
+                return localVariable;
+            }
+
+            throw new TreeSerializer.ParseException("unknown entry type", line);
+        }, firstLine);
+    }
+
+    private static boolean isLabel(String label, int typeEnd, String type) {
+        return typeEnd == type.length() && label.startsWith(type);
+    }
+
+    private static int tokenize(String label, int start, String[] tokens) {
+        int count = 0;
+        while (start <= label.length()) {
+            int end = label.indexOf(' ', start);
+            if (end == -1) {
+                end = label.length();
+            }
+
+            if (end > start) { // repeated and trailing spaces don't make empty tokens
+                if (count == tokens.length) {
+                    return count + 1;
+                }
+
+                tokens[count++] = label.substring(start, end);
+            }
+
+            start = end + 1;
+        }
+
+        return count;
+    }
+
     public static class MappingFormatException extends Exception {
-        public final File file;
+        private static final long serialVersionUID = 1L;
+
+        public final Path file;
         public final int line;
 
-        public MappingFormatException(String message, File file) {
+        public MappingFormatException(String message, Path file) {
             super(message);
             this.file = file;
             line = -1;
         }
 
-        public MappingFormatException(TreeSerializer.ParseException cause, File file) {
+        public MappingFormatException(TreeSerializer.ParseException cause, Path file) {
             super(cause.getMessage(), cause);
             this.file = file;
             line = cause.line;
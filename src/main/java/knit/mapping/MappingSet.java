@@ -0,0 +1,369 @@
+package knit.mapping;
+
+import java.util.*;
+
+/**
+ * Children of a mapping, kept in serialization order and indexed by obfuscated
+ * name and descriptor (binary search) and by name (hash index, built lazily).
+ * Changes copy the contents and publish them whole, so reads are lock-free.
+ */
+public class MappingSet<E> extends AbstractCollection<E> {
+    private static final int NAME_INDEX_THRESHOLD = 8;
+
+    private final Key<E> key;
+    private volatile Contents contents = Contents.EMPTY;
+    volatile Runnable loader = null;
+
+    MappingSet(Key<E> key) {
+        this.key = key;
+    }
+
+    public E get(String obfuscatedName, String obfuscatedDescriptor) {
+        load();
+        Object[] entries = contents.entries;
+        int index = find(entries, obfuscatedName, obfuscatedDescriptor);
+        return index >= 0 ? key.type.cast(entries[index]) : null;
+    }
+
+    public E getByName(String name, String obfuscatedDescriptor) {
+        load();
+        Contents contents = this.contents;
+        Map<String, Object> nameIndex = contents.nameIndex;
+        if (nameIndex == null) {
+            if (contents.entries.length <= NAME_INDEX_THRESHOLD) {
+                for (Object indexedEntry : contents.entries) {
+                    E entry = key.type.cast(indexedEntry);
+                    if (key.getName(entry).equals(name) && hasDescriptor(entry, obfuscatedDescriptor)) {
+                        return entry;
+                    }
+                }
+
+                return null;
+            }
+
+            nameIndex = new HashMap<>(contents.entries.length * 2);
+            for (Object entry : contents.entries) {
+                addToNameIndex(nameIndex, key.type.cast(entry));
+            }
+
+            publishNameIndex(contents, nameIndex);
+        }
+
+        Object indexed = nameIndex.get(name);
+        if (indexed instanceof NameIndexList) {
+            for (Object indexedEntry : ((NameIndexList) indexed).entries) {
+                E entry = key.type.cast(indexedEntry);
+                if (hasDescriptor(entry, obfuscatedDescriptor)) {
+                    return entry;
+                }
+            }
+
+            return null;
+        }
+
+        E entry = key.type.cast(indexed);
+        return entry != null && hasDescriptor(entry, obfuscatedDescriptor) ? entry : null;
+    }
+
+    // Built by readers outside the lock, dropped if the contents changed meanwhile
+    private synchronized void publishNameIndex(Contents built, Map<String, Object> nameIndex) {
+        if (contents == built) {
+            contents = new Contents(built.entries, nameIndex);
+        }
+    }
+
+    private boolean hasDescriptor(E entry, String obfuscatedDescriptor) {
+        return obfuscatedDescriptor == null || obfuscatedDescriptor.equals(key.getObfuscatedDescriptor(entry));
+    }
+
+    @Override
+    public boolean add(E entry) {
+        load();
+        return addLoaded(entry);
+    }
+
+    synchronized boolean addLoaded(E entry) {
+        Object[] entries = contents.entries;
+        int index = find(entries, key.getObfuscatedName(entry), key.getObfuscatedDescriptor(entry));
+        if (index >= 0) {
+            return false;
+        }
+
+        index = -index - 1;
+        Object[] newEntries = new Object[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        newEntries[index] = entry;
+        System.arraycopy(entries, index, newEntries, index + 1, entries.length - index);
+        key.setOwner(entry, this);
+
+        Map<String, Object> nameIndex = copyNameIndex();
+        if (nameIndex != null) {
+            addToNameIndex(nameIndex, entry);
+        }
+
+        contents = new Contents(newEntries, nameIndex);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        load();
+        return indexOf(contents.entries, o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        load();
+        return removeEntry(o);
+    }
+
+    private synchronized boolean removeEntry(Object o) {
+        Object[] entries = contents.entries;
+        int index = indexOf(entries, o);
+        if (index < 0) {
+            return false;
+        }
+
+        Object[] newEntries = new Object[entries.length - 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+
+        E entry = key.type.cast(entries[index]);
+        key.setOwner(entry, null);
+
+        Map<String, Object> nameIndex = copyNameIndex();
+        if (nameIndex != null) {
+            removeFromNameIndex(nameIndex, entry, key.getName(entry));
+        }
+
+        contents = new Contents(newEntries, nameIndex);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        load();
+        synchronized (this) {
+            for (Object entry : contents.entries) {
+                key.setOwner(key.type.cast(entry), null);
+            }
+
+            contents = Contents.EMPTY;
+        }
+    }
+
+    @Override
+    public int size() {
+        load();
+        return contents.entries.length;
+    }
+
+    // Iterates over the contents at the time of the call
+    @Override
+    public Iterator<E> iterator() {
+        load();
+        Object[] entries = contents.entries;
+        return new Iterator<E>() {
+            private int next = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < entries.length;
+            }
+
+            @Override
+            public E next() {
+                if (next >= entries.length) {
+                    throw new NoSuchElementException();
+                }
+
+                last = next;
+                return key.type.cast(entries[next++]);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+
+                removeEntry(entries[last]);
+                last = -1;
+            }
+        };
+    }
+
+    // Entries as they are, without loading them
+    @SuppressWarnings("unchecked")
+    List<E> getLoaded() {
+        return (List<E>) Arrays.asList(contents.entries);
+    }
+
+    private void load() {
+        Runnable loader = this.loader;
+        if (loader != null) {
+            loader.run();
+        }
+    }
+
+    // Also publishes without an index, so an index being built from the old name is dropped
+    synchronized void rename(E entry, String oldName) {
+        Map<String, Object> nameIndex = copyNameIndex();
+        if (nameIndex != null) {
+            removeFromNameIndex(nameIndex, entry, oldName);
+            addToNameIndex(nameIndex, entry);
+        }
+
+        contents = new Contents(contents.entries, nameIndex);
+    }
+
+    private int indexOf(Object[] entries, Object o) {
+        if (!key.type.isInstance(o)) {
+            return -1;
+        }
+
+        E entry = key.type.cast(o);
+        int index = find(entries, key.getObfuscatedName(entry), key.getObfuscatedDescriptor(entry));
+        return index >= 0 && entries[index] == entry ? index : -1;
+    }
+
+    // Lists are copied too, the published ones are never changed
+    private Map<String, Object> copyNameIndex() {
+        Map<String, Object> nameIndex = contents.nameIndex;
+        if (nameIndex == null) {
+            return null;
+        }
+
+        Map<String, Object> copy = new HashMap<>(nameIndex);
+        copy.replaceAll((name, indexed) -> indexed instanceof NameIndexList ? new NameIndexList(((NameIndexList) indexed).entries) : indexed);
+        return copy;
+    }
+
+    private void addToNameIndex(Map<String, Object> nameIndex, E entry) {
+        // An index built after a rename may already contain the entry under its new name
+        nameIndex.merge(key.getName(entry), entry, (existing, added) -> {
+            if (existing == added) {
+                return existing;
+            }
+
+            if (existing instanceof NameIndexList) {
+                List<Object> entries = ((NameIndexList) existing).entries;
+                if (entries.stream().noneMatch(e -> e == added)) {
+                    entries.add(added);
+                }
+
+                return existing;
+            }
+
+            NameIndexList list = new NameIndexList(Collections.singletonList(existing));
+            list.entries.add(added);
+            return list;
+        });
+    }
+
+    private void removeFromNameIndex(Map<String, Object> nameIndex, E entry, String name) {
+        Object indexed = nameIndex.get(name);
+
+        if (indexed instanceof NameIndexList) {
+            List<Object> list = ((NameIndexList) indexed).entries;
+            list.removeIf(e -> e == entry);
+            if (list.size() == 1) {
+                nameIndex.put(name, list.get(0));
+            }
+        } else if (indexed == entry) {
+            nameIndex.remove(name);
+        }
+    }
+
+    // Binary search in serialization order, same result as Collections.binarySearch
+    private int find(Object[] entries, String obfuscatedName, String obfuscatedDescriptor) {
+        int low = 0;
+        int high = entries.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            E entry = key.type.cast(entries[middle]);
+            int comparison = obfuscatedDescriptor == null ?
+                    compare(key.getObfuscatedName(entry), obfuscatedName) :
+                    compare(key.getObfuscatedName(entry), key.getObfuscatedDescriptor(entry), obfuscatedName, obfuscatedDescriptor);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    // Same order as comparing a1 + a2 to b1 + b2, without concatenating
+    private static int compare(String a1, String a2, String b1, String b2) {
+        int aLength = a1.length() + a2.length();
+        int bLength = b1.length() + b2.length();
+        int length = Math.min(aLength, bLength);
+
+        for (int i = 0; i < length; i++) {
+            char a = i < a1.length() ? a1.charAt(i) : a2.charAt(i - a1.length());
+            char b = i < b1.length() ? b1.charAt(i) : b2.charAt(i - b1.length());
+
+            if (a != b) {
+                return a - b;
+            }
+        }
+
+        if (aLength != bLength) {
+            return aLength - bLength;
+        }
+
+        return a1.length() - b1.length(); // "ab" + "c" and "a" + "bc" are different entries
+    }
+
+    private static int compare(String a, String b) {
+        if (a.length() != b.length()) {
+            return a.length() - b.length();
+        }
+
+        return a.compareTo(b);
+    }
+
+    // Entries sharing a name, distinguished from a single indexed entry by type
+    private static class NameIndexList {
+        final List<Object> entries;
+
+        NameIndexList(List<Object> entries) {
+            this.entries = new ArrayList<>(entries);
+        }
+    }
+
+    private static class Contents {
+        static final Contents EMPTY = new Contents(new Object[0], null);
+
+        final Object[] entries;
+        final Map<String, Object> nameIndex;
+
+        Contents(Object[] entries, Map<String, Object> nameIndex) {
+            this.entries = entries;
+            this.nameIndex = nameIndex;
+        }
+    }
+
+    abstract static class Key<E> {
+        final Class<E> type;
+
+        Key(Class<E> type) {
+            this.type = type;
+        }
+
+        abstract String getObfuscatedName(E entry);
+
+        abstract String getObfuscatedDescriptor(E entry);
+
+        abstract String getName(E entry);
+
+        abstract void setOwner(E entry, MappingSet<E> owner);
+    }
+}
@@ -0,0 +1,201 @@
+package knit.mapping;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+public class MappingSnapshot {
+    private static final int MAGIC = 0x4B4E4954; // "KNIT"
+    private static final int VERSION = 2;
+
+    private MappingSnapshot() {}
+
+    public static long fingerprint(File directory) throws IOException {
+        Path root = directory.toPath();
+        long[] fingerprint = {VERSION};
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && file.getFileName().toString().endsWith(".mapping")) {
+                    long hash = root.relativize(file).toString().hashCode();
+                    hash = hash * 31 + attributes.size();
+                    hash = hash * 31 + attributes.lastModifiedTime().toMillis();
+                    fingerprint[0] += mix(hash);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return fingerprint[0];
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static void write(File file, String storePath, long fingerprint, CompactMappingSet classes) throws IOException {
+        file.getParentFile().mkdirs();
+        Path temporaryFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(fingerprint);
+                writeString(output, storePath);
+
+                String[] strings = classes.getStrings();
+                output.writeInt(strings.length);
+                for (String string : strings) {
+                    writeString(output, string);
+                }
+
+                output.writeInt(classes.getRecordCount());
+                for (int value : classes.getData()) {
+                    output.writeInt(value);
+                }
+            }
+
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    // Returns null unless the snapshot was written for the same store and fingerprint
+    public static CompactMappingSet read(File file, String storePath, long fingerprint) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // Read onto the heap, a live mapping would keep write from replacing the file on Windows
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint) {
+                return null;
+            }
+
+            byte[] storePathBytes = storePath.getBytes(StandardCharsets.UTF_8);
+            int storePathLength = buffer.getInt();
+            if (storePathLength != storePathBytes.length || storePathLength > buffer.remaining()) {
+                return null;
+            }
+
+            byte[] snapshotStorePath = new byte[storePathLength];
+            buffer.get(snapshotStorePath);
+            if (!Arrays.equals(snapshotStorePath, storePathBytes)) {
+                return null;
+            }
+
+            int stringCount = buffer.getInt();
+            if (stringCount < 0 || stringCount > buffer.remaining() / 4) {
+                return null;
+            }
+
+            String[] strings = new String[stringCount];
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return null;
+                }
+
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+
+                buffer.get(bytes, 0, length);
+                strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            int classCount = buffer.getInt();
+            if (classCount < 0 || classCount > buffer.remaining() / 4 || buffer.remaining() % 4 != 0) {
+                return null;
+            }
+
+            int[] data = new int[buffer.remaining() / 4];
+            buffer.asIntBuffer().get(data);
+
+            // Check record boundaries and string indices up front so lookups can't fail later
+            int position = 0;
+            for (int i = 0; i < classCount; i++) {
+                if (position >= data.length || data[position] < 4 || data[position] % 4 != 0) {
+                    return null;
+                }
+
+                int end = position + 1 + data[position] / 4;
+                if (end > data.length || data[position + 1] < 0 || data[position + 1] >= stringCount || checkClass(data, position + 2, stringCount) != end) {
+                    return null;
+                }
+
+                position = end;
+            }
+
+            return position == data.length ? new CompactMappingSet(strings, data, classCount) : null;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // Returns the position after the class, or -1 if it references a missing string
+    private static int checkClass(int[] data, int position, int stringCount) {
+        position = checkStrings(data, position, 2, stringCount);
+        position = checkComments(data, position, stringCount);
+
+        for (int i = data[position++]; i > 0 && position != -1; i--) {
+            position = checkClass(data, position, stringCount);
+        }
+
+        for (int i = data[position++]; i > 0 && position != -1; i--) {
+            position = checkComments(data, checkStrings(data, position, 3, stringCount), stringCount);
+        }
+
+        for (int i = data[position++]; i > 0 && position != -1; i--) {
+            position = checkComments(data, checkStrings(data, position, 3, stringCount), stringCount);
+
+            for (int j = data[position++]; j > 0 && position != -1; j--) {
+                position = checkComments(data, checkStrings(data, position + 1, 1, stringCount), stringCount);
+            }
+        }
+
+        return position;
+    }
+
+    private static int checkComments(int[] data, int position, int stringCount) {
+        return position == -1 ? -1 : checkStrings(data, position + 1, data[position], stringCount);
+    }
+
+    private static int checkStrings(int[] data, int position, int count, int stringCount) {
+        if (position == -1 || count < 0) {
+            return -1;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int index = data[position + i];
+            if (index < 0 || index >= stringCount) {
+                return -1;
+            }
+        }
+
+        return position + count;
+    }
+}
@@ -0,0 +1,54 @@
+package knit.mapping;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+public interface MappingStore extends Closeable {
+    ClassMapping read(String mappingName) throws IOException, MappingSerializer.MappingFormatException;
+
+    // Reads in parallel batches; names without a file map to null, files that don't parse are left out and added to errors
+    default Map<String, ClassMapping> read(List<String> mappingNames, Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException {
+        List<Object> results = MappingSerializer.processInBatches(mappingNames, MappingSerializer.LOOKUP_BATCH_SIZE, executor, mappingName -> {
+            try {
+                return read(mappingName);
+            } catch (MappingSerializer.MappingFormatException e) {
+                return e;
+            }
+        });
+
+        Map<String, ClassMapping> classes = new LinkedHashMap<>();
+        Iterator<String> mappingNameIterator = mappingNames.iterator();
+
+        for (Object result : results) {
+            String mappingName = mappingNameIterator.next();
+
+            if (result instanceof MappingSerializer.MappingFormatException) {
+                errors.add((MappingSerializer.MappingFormatException) result);
+            } else {
+                classes.put(mappingName, (ClassMapping) result);
+            }
+        }
+
+        return classes;
+    }
+
+    // Members are read on first access; if that fails, the error goes to loadErrorHandler and the members stay empty
+    ClassMapping readHeader(String mappingName, Consumer<Exception> loadErrorHandler) throws IOException, MappingSerializer.MappingFormatException;
+
+    List<String> listMappingNames() throws IOException, MappingSerializer.MappingFormatException;
+
+    // Files that don't parse are skipped and added to errors
+    Map<String, ClassMapping> readAll(Executor executor, List<MappingSerializer.MappingFormatException> errors) throws IOException, MappingSerializer.MappingFormatException;
+
+    void write(String mappingName, byte[] serializedClass) throws IOException;
+
+    boolean isReadOnly();
+
+    long fingerprint() throws IOException;
+}
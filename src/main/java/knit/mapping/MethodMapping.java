@@ -1,20 +1,55 @@
 package knit.mapping;
 
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
 
 public class MethodMapping {
-    public String obfuscatedName;
-    public String obfuscatedDescriptor;
-    public String name;
-    public final Set<LocalVariableMapping> localVariables = new LinkedHashSet<>();
+    static final MappingSet.Key<MethodMapping> KEY = new MappingSet.Key<MethodMapping>(MethodMapping.class) {
+        @Override
+        String getObfuscatedName(MethodMapping entry) {
+            return entry.obfuscatedName;
+        }
+
+        @Override
+        String getObfuscatedDescriptor(MethodMapping entry) {
+            return entry.obfuscatedDescriptor;
+        }
+
+        @Override
+        String getName(MethodMapping entry) {
+            return entry.name;
+        }
+
+        @Override
+        void setOwner(MethodMapping entry, MappingSet<MethodMapping> owner) {
+            entry.owner = owner;
+        }
+    };
+
+    public final String obfuscatedName;
+    public final String obfuscatedDescriptor;
+    private volatile String name;
+    public final LocalVariableSet localVariables = new LocalVariableSet();
     public final List<CommentLine> comments = new ArrayList<>();
+    private MappingSet<MethodMapping> owner = null;
 
     public MethodMapping(String obfuscatedName, String obfuscatedDescriptor, String name) {
         this.obfuscatedName = obfuscatedName;
         this.obfuscatedDescriptor = obfuscatedDescriptor;
         this.name = name;
     }
+
+    public String getName() {
+        return name;
+    }
+
+    // Renames go through the owning set so its name index stays current
+    public void setName(String name) {
+        String oldName = this.name;
+        this.name = name;
+
+        if (owner != null) {
+            owner.rename(this, oldName);
+        }
+    }
 }
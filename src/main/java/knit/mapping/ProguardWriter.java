@@ -0,0 +1,95 @@
+package knit.mapping;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ProguardWriter extends FlatMappingVisitor {
+    private final Writer writer;
+    private final Map<String, String> classNames;
+
+    public ProguardWriter(Writer writer, Map<String, String> classNames) {
+        this.writer = writer;
+        this.classNames = classNames;
+    }
+
+    @Override
+    protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) throws IOException {
+        writer.write(name.replace('/', '.') + " -> " + obfuscatedName.replace('/', '.') + ":\n");
+    }
+
+    @Override
+    protected void visitField(FieldMapping field) throws IOException {
+        writer.write("    " + getTypeName(field.obfuscatedDescriptor, 0) + " " + field.getName() + " -> " + field.obfuscatedName + "\n");
+    }
+
+    @Override
+    protected void visitMethod(MethodMapping method) throws IOException {
+        String descriptor = method.obfuscatedDescriptor;
+        StringBuilder parameters = new StringBuilder();
+        int index = 1;
+
+        while (descriptor.charAt(index) != ')') {
+            if (index != 1) {
+                parameters.append(',');
+            }
+
+            parameters.append(getTypeName(descriptor, index));
+            index = getTypeEnd(descriptor, index);
+        }
+
+        writer.write("    " + getTypeName(descriptor, index + 1) + " " + method.getName() + "(" + parameters + ") -> " + method.obfuscatedName + "\n");
+    }
+
+    private String getTypeName(String descriptor, int start) {
+        int dimensions = 0;
+        while (descriptor.charAt(start + dimensions) == '[') {
+            dimensions++;
+        }
+
+        StringBuilder typeName = new StringBuilder();
+        int index = start + dimensions;
+
+        switch (descriptor.charAt(index)) {
+            case 'Z': typeName.append("boolean"); break;
+            case 'B': typeName.append("byte"); break;
+            case 'C': typeName.append("char"); break;
+            case 'S': typeName.append("short"); break;
+            case 'I': typeName.append("int"); break;
+            case 'J': typeName.append("long"); break;
+            case 'F': typeName.append("float"); break;
+            case 'D': typeName.append("double"); break;
+            case 'V': typeName.append("void"); break;
+            case 'L': {
+                String className = descriptor.substring(index + 1, descriptor.indexOf(';', index));
+                typeName.append(classNames.getOrDefault(className, className).replace('/', '.'));
+                break;
+            }
+            default: throw new IllegalArgumentException("invalid descriptor " + descriptor);
+        }
+
+        for (int i = 0; i < dimensions; i++) {
+            typeName.append("[]");
+        }
+
+        return typeName.toString();
+    }
+
+    private static int getTypeEnd(String descriptor, int start) {
+        while (descriptor.charAt(start) == '[') {
+            start++;
+        }
+
+        return descriptor.charAt(start) == 'L' ? descriptor.indexOf(';', start) + 1 : start + 1;
+    }
+
+    public static class ClassNameCollector extends FlatMappingVisitor {
+        public final Map<String, String> classNames = new HashMap<>();
+
+        @Override
+        protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) {
+            classNames.put(obfuscatedName, name);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package knit.mapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class TinyV2Reader {
+    private TinyV2Reader() {}
+
+    public static Set<ClassMapping> read(Reader reader, String obfuscatedNamespace, String namedNamespace) throws TreeSerializer.ParseException, IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String header = lines.readLine();
+        String[] headerTokens = header == null ? new String[0] : header.split("\t", -1);
+
+        if (headerTokens.length < 5 || !headerTokens[0].equals("tiny") || !headerTokens[1].equals("2")) {
+            throw new TreeSerializer.ParseException("not a tiny v2 file", 1);
+        }
+
+        List<String> namespaces = Arrays.asList(headerTokens).subList(3, headerTokens.length);
+        int obfuscatedIndex = namespaces.indexOf(obfuscatedNamespace);
+        int namedIndex = namespaces.indexOf(namedNamespace);
+
+        if (obfuscatedIndex == -1 || namedIndex == -1) {
+            throw new TreeSerializer.ParseException("missing namespace " + (obfuscatedIndex == -1 ? obfuscatedNamespace : namedNamespace), 1);
+        }
+
+        ClassMappingTree tree = new ClassMappingTree();
+        ClassMapping clazz = null;
+        MethodMapping method = null;
+        List<List<CommentLine>> commentTargets = new ArrayList<>(Collections.nCopies(4, null));
+        boolean escapedNames = false;
+        boolean inHeader = true;
+        int lineNumber = 1;
+        String line;
+
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+
+            int indent = 0;
+            while (indent < line.length() && line.charAt(indent) == '\t') {
+                indent++;
+            }
+
+            String[] tokens = line.substring(indent).split("\t", -1);
+
+            if (inHeader && indent == 1) {
+                escapedNames |= tokens[0].equals("escaped-names");
+                continue;
+            }
+
+            inHeader = false;
+
+            if (indent > 3) {
+                continue;
+            }
+
+            if (indent < 3) {
+                commentTargets.set(indent + 1, null);
+            }
+
+            if (indent == 0) {
+                clazz = null;
+            }
+
+            if (indent <= 1) {
+                method = null;
+            }
+
+            if (tokens[0].equals("c") && indent > 0) {
+                if (commentTargets.get(indent) != null) {
+                    for (String comment : unescape(getToken(tokens, 1, lineNumber)).split("\n", -1)) {
+                        commentTargets.get(indent).add(new CommentLine(comment));
+                    }
+                }
+            } else if (indent == 0 && tokens[0].equals("c")) {
+                String obfuscatedName = getName(tokens, 1, obfuscatedIndex, escapedNames, lineNumber);
+                String name = getName(tokens, 1, namedIndex, escapedNames, lineNumber);
+                clazz = tree.getClass(obfuscatedName, name.isEmpty() ? obfuscatedName : name);
+                commentTargets.set(1, clazz.comments);
+
+                if (obfuscatedIndex != 0) {
+                    tree.addDescriptorClassName(getName(tokens, 1, 0, escapedNames, lineNumber), obfuscatedName);
+                }
+            } else if (indent == 1 && clazz != null && tokens[0].equals("f")) {
+                String obfuscatedName = getName(tokens, 2, obfuscatedIndex, escapedNames, lineNumber);
+                String name = getName(tokens, 2, namedIndex, escapedNames, lineNumber);
+                FieldMapping field = new FieldMapping(obfuscatedName, getToken(tokens, 1, lineNumber), name.isEmpty() ? obfuscatedName : name);
+                if (!clazz.fields.add(field)) {
+                    throw new TreeSerializer.ParseException("duplicate field " + obfuscatedName, lineNumber);
+                }
+
+                commentTargets.set(2, field.comments);
+            } else if (indent == 1 && clazz != null && tokens[0].equals("m")) {
+                String obfuscatedName = getName(tokens, 2, obfuscatedIndex, escapedNames, lineNumber);
+                String name = getName(tokens, 2, namedIndex, escapedNames, lineNumber);
+                method = new MethodMapping(obfuscatedName, getToken(tokens, 1, lineNumber), name.isEmpty() ? obfuscatedName : name);
+                if (!clazz.methods.add(method)) {
+                    throw new TreeSerializer.ParseException("duplicate method " + obfuscatedName, lineNumber);
+                }
+
+                commentTargets.set(2, method.comments);
+            } else if (indent == 2 && method != null && tokens[0].equals("p")) {
+                String name = getName(tokens, 2, namedIndex, escapedNames, lineNumber);
+
+                if (!name.isEmpty()) {
+                    LocalVariableMapping localVariable = new LocalVariableMapping(parseIndex(getToken(tokens, 1, lineNumber), lineNumber), name);
+                    if (!method.localVariables.add(localVariable)) {
+                        throw new TreeSerializer.ParseException("duplicate local variable " + localVariable.index, lineNumber);
+                    }
+
+                    commentTargets.set(3, localVariable.comments);
+                }
+            }
+        }
+
+        return tree.finish();
+    }
+
+    private static String getToken(String[] tokens, int index, int line) throws TreeSerializer.ParseException {
+        if (index >= tokens.length) {
+            throw new TreeSerializer.ParseException("wrong number of tokens", line);
+        }
+
+        return tokens[index];
+    }
+
+    private static String getName(String[] tokens, int start, int namespace, boolean escaped, int line) throws TreeSerializer.ParseException {
+        String name = getToken(tokens, start + namespace, line);
+        return escaped ? unescape(name) : name;
+    }
+
+    private static int parseIndex(String index, int line) throws TreeSerializer.ParseException {
+        try {
+            return Integer.parseInt(index);
+        } catch (NumberFormatException e) {
+            throw new TreeSerializer.ParseException("invalid index " + index, line);
+        }
+    }
+
+    private static String unescape(String string) {
+        if (string.indexOf('\\') == -1) {
+            return string;
+        }
+
+        StringBuilder unescaped = new StringBuilder(string.length());
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            if (c == '\\' && i + 1 < string.length()) {
+                switch (string.charAt(++i)) {
+                    case 'n': unescaped.append('\n'); break;
+                    case 'r': unescaped.append('\r'); break;
+                    case 't': unescaped.append('\t'); break;
+                    case '0': unescaped.append('\0'); break;
+                    default: unescaped.append(string.charAt(i));
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+
+        return unescaped.toString();
+    }
+}
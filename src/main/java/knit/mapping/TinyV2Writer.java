@@ -0,0 +1,82 @@
+package knit.mapping;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+
+public class TinyV2Writer extends FlatMappingVisitor {
+    private final Writer writer;
+
+    public TinyV2Writer(Writer writer, String obfuscatedNamespace, String namedNamespace) {
+        this.writer = writer;
+
+        try {
+            writer.write("tiny\t2\t0\t" + obfuscatedNamespace + "\t" + namedNamespace + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) throws IOException {
+        writer.write("c\t" + obfuscatedName + "\t" + name + "\n");
+        writeComments(clazz.comments, 1);
+    }
+
+    @Override
+    protected void visitField(FieldMapping field) throws IOException {
+        writer.write("\tf\t" + field.obfuscatedDescriptor + "\t" + field.obfuscatedName + "\t" + field.getName() + "\n");
+        writeComments(field.comments, 2);
+    }
+
+    @Override
+    protected void visitMethod(MethodMapping method) throws IOException {
+        writer.write("\tm\t" + method.obfuscatedDescriptor + "\t" + method.obfuscatedName + "\t" + method.getName() + "\n");
+        writeComments(method.comments, 2);
+    }
+
+    @Override
+    protected void visitLocalVariable(MethodMapping method, LocalVariableMapping localVariable) throws IOException {
+        writer.write("\t\tp\t" + localVariable.index + "\t\t" + localVariable.name + "\n");
+        writeComments(localVariable.comments, 3);
+    }
+
+    private void writeComments(List<CommentLine> comments, int indent) throws IOException {
+        if (comments.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < indent; i++) {
+            writer.write('\t');
+        }
+
+        writer.write("c\t");
+        for (int i = 0; i < comments.size(); i++) {
+            if (i != 0) {
+                writer.write("\\n");
+            }
+
+            writer.write(escape(comments.get(i).comment));
+        }
+        writer.write('\n');
+    }
+
+    private static String escape(String string) {
+        StringBuilder escaped = new StringBuilder(string.length());
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\0': escaped.append("\\0"); break;
+                default: escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+}
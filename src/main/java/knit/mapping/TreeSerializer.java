@@ -3,10 +3,19 @@ package knit.mapping;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.Function;
 
 public class TreeSerializer {
+    private static final int BUFFER_SIZE = 8192;
+
     private TreeSerializer() {}
 
     public static <E> void write(Writer writer, E root, Function<E, List<E>> childrenProvider, Function<E, String> labelSerializer) throws IOException {
@@ -27,13 +36,9 @@ public class TreeSerializer {
     }
 
     public static <E> List<E> read(Reader reader, Factory<E> factory) throws ParseException, IOException {
-        int lastIndent = 0;
+        TreeBuilder<E> builder = new TreeBuilder<>(factory);
         int indent = 0;
         int line = 1;
-        Deque<String> labels = new ArrayDeque<>();
-        Deque<Integer> lines = new ArrayDeque<>();
-        Deque<List<E>> children = new ArrayDeque<>();
-        children.push(new ArrayList<>());
         StringBuilder label = null;
         while (true) {
             int c = reader.read();
@@ -45,34 +50,12 @@ public class TreeSerializer {
 
                 indent++;
             } else if (c == -1 || c == '\n') {
-                if (label == null && !(c == -1 && indent == 0)) {
-                    throw new ParseException("empty line", line);
-                }
-
-                if (indent <= lastIndent) { // last was a leaf
-                    if (!labels.isEmpty()) {
-                        children.peek().add(factory.apply(labels.pop(), Collections.emptyList(), lines.pop()));
-                    }
-                } else { // this is a child of the previous node
-                    if (indent != lastIndent + 1) {
-                        throw new ParseException("indented too much", line);
-                    }
-
-                    children.push(new ArrayList<>());
-                }
-
-                while (lastIndent > indent) { // last node was ended
-                    List<E> lastNodeChildren = children.pop();
-                    children.peek().add(factory.apply(labels.pop(), lastNodeChildren, lines.pop()));
-                    lastIndent--;
-                }
-
                 if (label != null) {
-                    labels.push(label.toString());
-                    lines.push(line);
+                    builder.add(label.toString(), indent, line);
+                } else if (!(c == -1 && indent == 0)) {
+                    throw new ParseException("empty line", line);
                 }
 
-                lastIndent = indent;
                 indent = 0;
                 label = null;
                 line++;
@@ -85,18 +68,144 @@ public class TreeSerializer {
             }
 
             if (c == -1) {
-                while (lastIndent > 0) { // last node was ended
-                    List<E> lastNodeChildren = children.pop();
-                    children.peek().add(factory.apply(labels.pop(), lastNodeChildren, lines.pop()));
-                    lastIndent--;
+                return builder.finish();
+            }
+        }
+    }
+
+    public static <E> List<E> read(ReadableByteChannel channel, Factory<E> factory) throws ParseException, IOException {
+        return read(channel, factory, 1);
+    }
+
+    public static <E> List<E> read(ReadableByteChannel channel, Factory<E> factory, int firstLine) throws ParseException, IOException {
+        TreeBuilder<E> builder = new TreeBuilder<>(factory);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        char[] label = new char[128];
+        int labelLength = 0;
+        int indent = 0;
+        int line = firstLine;
+        boolean inLabel = false;
+
+        while (true) {
+            boolean endOfInput = channel.read(bytes) == -1;
+            bytes.flip();
+
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, endOfInput);
+
+                if (result.isError()) {
+                    throw new ParseException("invalid UTF-8", line);
+                }
+
+                if (endOfInput && result.isUnderflow()) {
+                    result = decoder.flush(chars);
+                }
+
+                chars.flip();
+                while (chars.hasRemaining()) {
+                    char c = chars.get();
+
+                    if (c == '\t') {
+                        if (inLabel) {
+                            throw new ParseException("found tab in value on line", line);
+                        }
+
+                        indent++;
+                    } else if (c == '\n') {
+                        if (!inLabel) {
+                            throw new ParseException("empty line", line);
+                        }
+
+                        builder.add(new String(label, 0, labelLength), indent, line);
+                        labelLength = 0;
+                        inLabel = false;
+                        indent = 0;
+                        line++;
+                    } else if (c != '\r') {
+                        if (labelLength == label.length) {
+                            label = Arrays.copyOf(label, label.length * 2);
+                        }
+
+                        label[labelLength++] = c;
+                        inLabel = true;
+                    }
+                }
+                chars.clear();
+            } while (result.isOverflow());
+
+            bytes.compact();
+
+            if (endOfInput) {
+                if (inLabel) {
+                    builder.add(new String(label, 0, labelLength), indent, line);
+                } else if (indent != 0) {
+                    throw new ParseException("empty line", line);
+                }
+
+                return builder.finish();
+            }
+        }
+    }
+
+    private static class TreeBuilder<E> {
+        private final Factory<E> factory;
+        private final Deque<String> labels = new ArrayDeque<>();
+        private final Deque<Integer> lines = new ArrayDeque<>();
+        private final Deque<List<E>> children = new ArrayDeque<>();
+        private int lastIndent = 0;
+
+        TreeBuilder(Factory<E> factory) {
+            this.factory = factory;
+            children.push(new ArrayList<>());
+        }
+
+        void add(String label, int indent, int line) throws ParseException {
+            if (indent <= lastIndent) { // last was a leaf
+                if (!labels.isEmpty()) {
+                    children.peek().add(factory.apply(labels.pop(), Collections.emptyList(), lines.pop()));
+                }
+            } else { // this is a child of the previous node
+                if (indent != lastIndent + 1) {
+                    throw new ParseException("indented too much", line);
                 }
 
-                return children.peek();
+                children.push(new ArrayList<>());
             }
+
+            while (lastIndent > indent) { // last node was ended
+                List<E> lastNodeChildren = children.pop();
+                children.peek().add(factory.apply(labels.pop(), lastNodeChildren, lines.pop()));
+                lastIndent--;
+            }
+
+            labels.push(label);
+            lines.push(line);
+            lastIndent = indent;
+        }
+
+        List<E> finish() throws ParseException {
+            if (!labels.isEmpty()) { // last was a leaf
+                children.peek().add(factory.apply(labels.pop(), Collections.emptyList(), lines.pop()));
+            }
+
+            while (lastIndent > 0) { // last node was ended
+                List<E> lastNodeChildren = children.pop();
+                children.peek().add(factory.apply(labels.pop(), lastNodeChildren, lines.pop()));
+                lastIndent--;
+            }
+
+            return children.peek();
         }
     }
 
     public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
         public final int line;
 
         public ParseException(String message, int line) {
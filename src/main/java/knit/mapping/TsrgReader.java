@@ -0,0 +1,111 @@
+package knit.mapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class TsrgReader {
+    private TsrgReader() {}
+
+    // Fields without a descriptor can't be mapped, they are left out and their obfuscated names added to skippedFields
+    public static Set<ClassMapping> read(Reader reader, String obfuscatedNamespace, String namedNamespace, List<String> skippedFields) throws TreeSerializer.ParseException, IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String header = lines.readLine();
+        String[] headerTokens = header == null ? new String[0] : header.split(" ");
+
+        if (headerTokens.length < 3 || !headerTokens[0].equals("tsrg2")) {
+            throw new TreeSerializer.ParseException("not a tsrg2 file", 1);
+        }
+
+        List<String> namespaces = Arrays.asList(headerTokens).subList(1, headerTokens.length);
+        int namespaceCount = namespaces.size();
+        int obfuscatedIndex = namespaces.indexOf(obfuscatedNamespace);
+        int namedIndex = namespaces.indexOf(namedNamespace);
+
+        if (obfuscatedIndex == -1 || namedIndex == -1) {
+            throw new TreeSerializer.ParseException("missing namespace " + (obfuscatedIndex == -1 ? obfuscatedNamespace : namedNamespace), 1);
+        }
+
+        ClassMappingTree tree = new ClassMappingTree();
+        ClassMapping clazz = null;
+        String className = null;
+        MethodMapping method = null;
+        int lineNumber = 1;
+        String line;
+
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+
+            int indent = 0;
+            while (indent < line.length() && line.charAt(indent) == '\t') {
+                indent++;
+            }
+
+            if (indent == line.length()) {
+                continue;
+            }
+
+            String[] tokens = line.substring(indent).split(" ");
+
+            if (indent == 0) {
+                if (tokens.length != namespaceCount) {
+                    throw new TreeSerializer.ParseException("wrong number of tokens", lineNumber);
+                }
+
+                clazz = tree.getClass(tokens[obfuscatedIndex], tokens[namedIndex]);
+                className = tokens[obfuscatedIndex];
+                method = null;
+
+                if (obfuscatedIndex != 0) {
+                    tree.addDescriptorClassName(tokens[0], tokens[obfuscatedIndex]);
+                }
+            } else if (indent == 1 && clazz != null) {
+                if (tokens.length == namespaceCount) {
+                    skippedFields.add(className + "." + tokens[obfuscatedIndex]);
+                    method = null;
+                    continue;
+                }
+
+                if (tokens.length != namespaceCount + 1) {
+                    throw new TreeSerializer.ParseException("wrong number of tokens", lineNumber);
+                }
+
+                String obfuscatedName = tokens[obfuscatedIndex == 0 ? 0 : obfuscatedIndex + 1];
+                String name = tokens[namedIndex == 0 ? 0 : namedIndex + 1];
+
+                boolean added;
+                if (tokens[1].startsWith("(")) {
+                    method = new MethodMapping(obfuscatedName, tokens[1], name);
+                    added = clazz.methods.add(method);
+                } else {
+                    added = clazz.fields.add(new FieldMapping(obfuscatedName, tokens[1], name));
+                    method = null;
+                }
+
+                if (!added) {
+                    throw new TreeSerializer.ParseException("duplicate member " + obfuscatedName, lineNumber);
+                }
+            } else if (indent == 2 && method != null && !tokens[0].equals("static")) {
+                if (tokens.length != namespaceCount + 1) {
+                    throw new TreeSerializer.ParseException("wrong number of tokens", lineNumber);
+                }
+
+                int index;
+                try {
+                    index = Integer.parseInt(tokens[0]);
+                } catch (NumberFormatException e) {
+                    throw new TreeSerializer.ParseException("invalid index " + tokens[0], lineNumber);
+                }
+
+                if (!method.localVariables.add(new LocalVariableMapping(index, tokens[namedIndex + 1]))) {
+                    throw new TreeSerializer.ParseException("duplicate local variable " + index, lineNumber);
+                }
+            }
+        }
+
+        return tree.finish();
+    }
+}
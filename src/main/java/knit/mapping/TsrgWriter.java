@@ -0,0 +1,39 @@
+package knit.mapping;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+public class TsrgWriter extends FlatMappingVisitor {
+    private final Writer writer;
+
+    public TsrgWriter(Writer writer, String obfuscatedNamespace, String namedNamespace) {
+        this.writer = writer;
+
+        try {
+            writer.write("tsrg2 " + obfuscatedNamespace + " " + namedNamespace + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void visitClass(ClassMapping clazz, String obfuscatedName, String name) throws IOException {
+        writer.write(obfuscatedName + " " + name + "\n");
+    }
+
+    @Override
+    protected void visitField(FieldMapping field) throws IOException {
+        writer.write("\t" + field.obfuscatedName + " " + field.obfuscatedDescriptor + " " + field.getName() + "\n");
+    }
+
+    @Override
+    protected void visitMethod(MethodMapping method) throws IOException {
+        writer.write("\t" + method.obfuscatedName + " " + method.obfuscatedDescriptor + " " + method.getName() + "\n");
+    }
+
+    @Override
+    protected void visitLocalVariable(MethodMapping method, LocalVariableMapping localVariable) throws IOException {
+        writer.write("\t\t" + localVariable.index + " arg" + localVariable.index + " " + localVariable.name + "\n");
+    }
+}
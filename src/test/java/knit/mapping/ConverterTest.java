@@ -0,0 +1,156 @@
+package knit.mapping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConverterTest {
+    private static final String[][] CLASSES = {
+            {"a/b/c", "CLASS a/b/c net/example/Widget\n" +
+                      "\tJAVADOC A widget\n" +
+                      "\tCLASS d Part\n" +
+                      "\t\tFIELD e size I\n" +
+                      "\tFIELD f parent La/b/g;\n" +
+                      "\t\tJAVADOC The parent\n" +
+                      "\tMETHOD h attach (La/b/g;J[I)Z\n" +
+                      "\t\tJAVADOC Attaches the widget\n" +
+                      "\t\tARG 1 target\n" +
+                      "\t\tARG 4 slots\n" +
+                      "\t\t\tJAVADOC Free slots\n"},
+            {"a/b/g", "CLASS a/b/g net/example/Container\n" +
+                      "\tMETHOD <init> (Ljava/lang/String;)V\n" +
+                      "\t\tARG 1 name\n" +
+                      "\tMETHOD i add (La/b/c;)V\n" +
+                      "\t\tARG 1 widget\n"},
+            {"j", "CLASS j net/example/Main\n" +
+                  "\tMETHOD main ([Ljava/lang/String;)V\n" +
+                  "\t\tARG 0 args\n"},
+    };
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File writeMappings() throws IOException {
+        File directory = temporaryFolder.newFolder("mappings");
+        for (String[] clazz : CLASSES) {
+            File file = new File(directory, clazz[0] + ".mapping");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), clazz[1].getBytes(StandardCharsets.UTF_8));
+        }
+
+        return directory;
+    }
+
+    @Test
+    public void tinyExportReadsBackUnchanged() throws Exception {
+        File directory = writeMappings();
+        StringWriter writer = new StringWriter();
+        MappingSerializer.read(directory.toPath(), new TinyV2Writer(writer, "official", "named"));
+
+        Set<ClassMapping> exported = TinyV2Reader.read(new StringReader(writer.toString()), "official", "named");
+        assertSameClasses(directory, exported, false);
+    }
+
+    @Test
+    public void tsrgExportReadsBackWithoutComments() throws Exception {
+        File directory = writeMappings();
+        StringWriter writer = new StringWriter();
+        MappingSerializer.read(directory.toPath(), new TsrgWriter(writer, "official", "named"));
+
+        List<String> skippedFields = new ArrayList<>();
+        Set<ClassMapping> exported = TsrgReader.read(new StringReader(writer.toString()), "official", "named", skippedFields);
+        assertSameClasses(directory, exported, true);
+        assertTrue(skippedFields.isEmpty());
+    }
+
+    @Test
+    public void tsrgFieldsWithoutDescriptorAreSkipped() throws Exception {
+        String tsrg = "tsrg2 official named\n" +
+                      "a net/example/A\n" +
+                      "\tb count\n" +
+                      "\tc I total\n";
+
+        List<String> skippedFields = new ArrayList<>();
+        Set<ClassMapping> classes = TsrgReader.read(new StringReader(tsrg), "official", "named", skippedFields);
+        ClassMapping clazz = classes.iterator().next();
+
+        assertEquals(1, clazz.fields.size());
+        assertEquals("total", clazz.fields.get("c", "I").getName());
+        assertEquals(1, skippedFields.size());
+        assertEquals("a.b", skippedFields.get(0));
+    }
+
+    @Test
+    public void tinyReadsOtherNamespaceOrder() throws Exception {
+        String tiny = "tiny\t2\t0\tintermediary\tofficial\tnamed\n" +
+                      "c\tclass_1\ta\tnet/example/A\n" +
+                      "\tf\tLclass_1;\tfield_1\tb\tself\n";
+
+        Set<ClassMapping> classes = TinyV2Reader.read(new StringReader(tiny), "official", "named");
+        ClassMapping clazz = classes.iterator().next();
+
+        assertEquals("a", clazz.obfuscatedName);
+        assertEquals("net/example/A", clazz.getName());
+        assertEquals("self", clazz.fields.get("b", "La;").getName());
+    }
+
+    @Test
+    public void proguardExportUsesNamedTypes() throws Exception {
+        File directory = writeMappings();
+        ProguardWriter.ClassNameCollector classNames = new ProguardWriter.ClassNameCollector();
+        MappingSerializer.read(directory.toPath(), classNames);
+        StringWriter writer = new StringWriter();
+        MappingSerializer.read(directory.toPath(), new ProguardWriter(writer, classNames.classNames));
+
+        String exported = writer.toString();
+        assertTrue(exported.contains("net.example.Widget -> a.b.c:\n"));
+        assertTrue(exported.contains("    net.example.Container parent -> f\n"));
+        assertTrue(exported.contains("    boolean attach(net.example.Container,long,int[]) -> h\n"));
+        assertTrue(exported.contains("net.example.Widget$Part -> a.b.c$d:\n"));
+    }
+
+    private static void assertSameClasses(File directory, Set<ClassMapping> exported, boolean withoutComments) throws Exception {
+        Map<String, ClassMapping> exportedByName = new HashMap<>();
+        for (ClassMapping clazz : exported) {
+            exportedByName.put(clazz.obfuscatedName, clazz);
+        }
+
+        assertEquals(CLASSES.length, exportedByName.size());
+
+        for (String[] clazz : CLASSES) {
+            ClassMapping original = MappingSerializer.readClass(new File(directory, clazz[0] + ".mapping"));
+            if (withoutComments) {
+                removeComments(original);
+            }
+
+            ClassMapping exportedClass = exportedByName.get(clazz[0]);
+            assertNotNull(clazz[0], exportedClass);
+            assertEquals(new String(MappingSerializer.serializeClass(original), StandardCharsets.UTF_8), new String(MappingSerializer.serializeClass(exportedClass), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void removeComments(ClassMapping clazz) {
+        clazz.comments.clear();
+        clazz.fields.forEach(field -> field.comments.clear());
+        for (MethodMapping method : clazz.methods) {
+            method.comments.clear();
+            method.localVariables.forEach(localVariable -> localVariable.comments.clear());
+        }
+
+        clazz.nestedClasses.forEach(ConverterTest::removeComments);
+    }
+}
@@ -0,0 +1,68 @@
+package knit.mapping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class LayeredMappingStoreTest {
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void write(File directory, String mappingName, String contents) throws Exception {
+        File file = new File(directory, mappingName + ".mapping");
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writesDifferenceToTopLayer() throws Exception {
+        File lower = temporaryFolder.newFolder("lower");
+        File top = temporaryFolder.newFolder("top");
+        write(lower, "net/example/A", "CLASS a net/example/A\n\tFIELD b count I\n\tFIELD c total I\n");
+
+        List<MappingSerializer.MappingFormatException> errors = new ArrayList<>();
+        LayeredMappingStore store = new LayeredMappingStore(Arrays.asList(new DirectoryMappingStore(lower), new DirectoryMappingStore(top)), DIRECT_EXECUTOR, errors);
+        assertTrue(errors.isEmpty());
+
+        ClassMapping clazz = store.read("net/example/A");
+        clazz.fields.get("b", "I").setName("size");
+        store.write("net/example/A", MappingSerializer.serializeClass(clazz));
+
+        assertEquals("CLASS a\n\tFIELD b size I\n", new String(Files.readAllBytes(new File(top, "net/example/A.mapping").toPath()), StandardCharsets.UTF_8).replace("\r\n", "\n"));
+
+        ClassMapping reread = store.read("net/example/A");
+        assertNotSame(clazz, reread);
+        assertEquals("size", reread.fields.get("b", "I").getName());
+        assertEquals("total", reread.fields.get("c", "I").getName());
+
+        store.write("net/example/A", MappingSerializer.serializeClass(store.read("net/example/A")));
+        assertEquals("size", store.read("net/example/A").fields.get("b", "I").getName());
+    }
+
+    @Test
+    public void skipsMalformedHeaders() throws Exception {
+        File lower = temporaryFolder.newFolder("lower");
+        File top = temporaryFolder.newFolder("top");
+        write(lower, "net/example/A", "CLASS a net/example/A\n");
+        write(top, "Broken", "FIELD a b I\n");
+
+        List<MappingSerializer.MappingFormatException> errors = new ArrayList<>();
+        LayeredMappingStore store = new LayeredMappingStore(Arrays.asList(new DirectoryMappingStore(lower), new DirectoryMappingStore(top)), DIRECT_EXECUTOR, errors);
+
+        assertEquals(1, errors.size());
+        assertNotNull(store.read("net/example/A"));
+        assertEquals(Arrays.asList("net/example/A"), store.listMappingNames());
+    }
+}
@@ -0,0 +1,130 @@
+package knit.mapping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappingJournalTest {
+    private static final String STORE = "/mappings";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static MappingJournal.Entry rename(String mappingName, String name) {
+        return new MappingJournal.Entry(mappingName, Collections.emptyList(), name, Collections.emptyList());
+    }
+
+    @Test
+    public void replaysEntriesOntoClass() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "edits.journal");
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            journal.append(new MappingJournal.Entry("a", Arrays.asList("CLASS b", "METHOD c (I)V", "ARG 1"), "count", Collections.singletonList("The count")));
+            journal.append(new MappingJournal.Entry("a", Collections.singletonList("FIELD d I"), "size", Collections.emptyList()));
+            journal.append(rename("a", "net/example/A"));
+        }
+
+        ClassMapping clazz = new ClassMapping("a", "a");
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            for (MappingJournal.Entry entry : journal.read()) {
+                entry.apply(clazz);
+            }
+        }
+
+        assertEquals("CLASS a net/example/A\n" +
+                     "\tCLASS b\n" +
+                     "\t\tMETHOD c (I)V\n" +
+                     "\t\t\tARG 1 count\n" +
+                     "\t\t\t\tJAVADOC The count\n" +
+                     "\tFIELD d size I\n",
+                     new String(MappingSerializer.serializeClass(clazz), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void dropsTornEntry() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "edits.journal");
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            journal.append(rename("a", "A"));
+        }
+
+        long size = file.length();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(size);
+            output.write(new byte[] {0, 0, 0, 50, 1, 2});
+        }
+
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            assertEquals(1, journal.read().size());
+        }
+
+        assertEquals(size, file.length());
+    }
+
+    @Test
+    public void compactsByLogicalPosition() throws IOException {
+        try (MappingJournal journal = new MappingJournal(new File(temporaryFolder.getRoot(), "edits.journal"), STORE)) {
+            journal.append(rename("a", "A"));
+            long first = journal.size();
+            journal.append(rename("b", "B"));
+            long second = journal.size();
+
+            journal.compact(first);
+            List<MappingJournal.Entry> entries = journal.read();
+            assertEquals(1, entries.size());
+            assertEquals("b", entries.get(0).mappingName);
+
+            journal.compact(first); // already compacted
+            assertEquals(1, journal.read().size());
+
+            journal.append(rename("c", "C"));
+            journal.compact(second);
+            entries = journal.read();
+            assertEquals(1, entries.size());
+            assertEquals("c", entries.get(0).mappingName);
+
+            journal.compact(journal.size());
+            assertTrue(journal.read().isEmpty());
+        }
+    }
+
+    @Test
+    public void keepsStorePathAcrossCompaction() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "edits.journal");
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            journal.append(rename("a", "A"));
+            long first = journal.size();
+            journal.append(rename("b", "B"));
+            journal.compact(first);
+        }
+
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            assertEquals(1, journal.read().size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesJournalOfOtherStore() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "edits.journal");
+        try (MappingJournal journal = new MappingJournal(file, STORE)) {
+            journal.append(rename("a", "A"));
+        }
+
+        new MappingJournal(file, "/other").close();
+    }
+
+    @Test
+    public void targetsClass() {
+        assertTrue(rename("a", "A").targetsClass());
+        assertTrue(new MappingJournal.Entry("a", Collections.singletonList("CLASS b"), "B", Collections.emptyList()).targetsClass());
+        assertFalse(new MappingJournal.Entry("a", Arrays.asList("CLASS b", "FIELD c I"), "d", Collections.emptyList()).targetsClass());
+    }
+}
@@ -0,0 +1,155 @@
+package knit.mapping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class MappingSerializerTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path write(String contents) throws IOException {
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String generateClasses(int count) {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            contents.append("CLASS c").append(i).append(" net/example/Class").append(i).append('\n');
+            contents.append("\tFIELD a value I\n");
+            contents.append("\tMETHOD b get (I)I\n");
+            contents.append("\t\tARG 1 index\n");
+        }
+
+        return contents.toString();
+    }
+
+    @Test
+    public void readsClassTree() throws Exception {
+        ClassMapping clazz = MappingSerializer.readClass(write(
+                "CLASS a net/example/A\n" +
+                "\tJAVADOC A class\n" +
+                "\tCLASS b Inner\n" +
+                "\tFIELD c count I\n" +
+                "\tMETHOD d (La;)V\n" +
+                "\t\tARG 1 other\n"));
+
+        assertEquals("a", clazz.obfuscatedName);
+        assertEquals("net/example/A", clazz.getName());
+        assertEquals("A class", clazz.comments.get(0).comment);
+        assertEquals("Inner", clazz.nestedClasses.get("b", null).getName());
+        assertEquals("count", clazz.fields.get("c", "I").getName());
+        assertEquals("d", clazz.methods.get("d", "(La;)V").getName());
+        assertEquals("other", clazz.methods.get("d", "(La;)V").localVariables.get(1).name);
+    }
+
+    @Test
+    public void ignoresTrailingAndRepeatedSpaces() throws Exception {
+        ClassMapping clazz = MappingSerializer.readClass(write("CLASS a \n\tFIELD b  c I\n\tMETHOD d e ()V \n\t\tARG 1 f \n"));
+
+        assertEquals("a", clazz.getName());
+        assertEquals("c", clazz.fields.get("b", "I").getName());
+        assertEquals("e", clazz.methods.get("d", "()V").getName());
+        assertEquals("f", clazz.methods.get("d", "()V").localVariables.get(1).name);
+    }
+
+    @Test
+    public void rejectsMalformedEntries() throws Exception {
+        String[] malformed = {
+                "CLASS a b c\n",
+                "CLASS\n",
+                "CLASS a\n\tFIELD b\n",
+                "CLASS a\n\tFIELD b I\n\tFIELD b c I\n",
+                "CLASS a\n\t\tFIELD b I\n",
+                "FIELD a I\n",
+        };
+
+        for (String contents : malformed) {
+            try {
+                MappingSerializer.readClass(write(contents));
+                fail("accepted " + contents);
+            } catch (MappingSerializer.MappingFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void serializesSortedWithoutNoOpEntries() throws Exception {
+        String contents = "CLASS a\n\tMETHOD e f ()V\n\tFIELD d y I\n\tFIELD c I\n\tFIELD b x I\n";
+        ClassMapping clazz = MappingSerializer.readClass(write(contents));
+
+        assertEquals("CLASS a\n\tFIELD b x I\n\tFIELD d y I\n\tMETHOD e f ()V\n", new String(MappingSerializer.serializeClass(clazz), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsSingleFileInChunks() throws Exception {
+        String contents = generateClasses(20000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Set<ClassMapping> classes = MappingSerializer.readSingleFile(write(contents), executor);
+            assertEquals(20000, classes.size());
+
+            StringBuilder serialized = new StringBuilder();
+            for (ClassMapping clazz : classes) {
+                serialized.append(new String(MappingSerializer.serializeClass(clazz), StandardCharsets.UTF_8));
+            }
+
+            assertEquals(contents, serialized.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsDuplicateTopLevelClassWithLine() throws Exception {
+        String contents = generateClasses(20000) + "CLASS c5 net/example/Duplicate\n";
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            MappingSerializer.readSingleFile(write(contents), executor);
+            fail("accepted a duplicate class");
+        } catch (MappingSerializer.MappingFormatException e) {
+            assertEquals(20000 * 4 + 1, e.line);
+            assertTrue(e.getMessage(), e.getMessage().startsWith("duplicate class entry c5"));
+        }
+
+        try {
+            MappingSerializer.readSingleFile(write("CLASS a\nCLASS b\n\tFIELD c I\nCLASS a x\n"), executor);
+            fail("accepted a duplicate class");
+        } catch (MappingSerializer.MappingFormatException e) {
+            assertEquals(4, e.line);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void deletesEmptyDirectoriesBelowRootOnly() throws Exception {
+        Path root = temporaryFolder.newFolder("mappings").toPath();
+        Path directory = Files.createDirectories(root.resolve("net/example"));
+        Files.createFile(root.resolve("net/Kept.mapping"));
+
+        MappingSerializer.deleteEmptyDirectories(root, directory);
+        MappingSerializer.deleteEmptyDirectories(root, directory);
+        assertFalse(Files.exists(directory));
+        assertTrue(Files.exists(root.resolve("net")));
+
+        Files.delete(root.resolve("net/Kept.mapping"));
+        MappingSerializer.deleteEmptyDirectories(root, root.resolve("net"));
+        assertTrue(Files.isDirectory(root));
+        assertFalse(Files.exists(root.resolve("net")));
+    }
+}
@@ -0,0 +1,81 @@
+package knit.mapping;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class MappingSetTest {
+    private static ClassMapping createClass(int fieldCount) {
+        ClassMapping clazz = new ClassMapping("a", "net/example/A");
+        for (int i = 0; i < fieldCount; i++) {
+            clazz.fields.add(new FieldMapping("f" + i, "I", "field" + i));
+        }
+
+        return clazz;
+    }
+
+    @Test
+    public void findsRenamedEntriesByName() {
+        ClassMapping clazz = createClass(20);
+        FieldMapping field = clazz.fields.get("f3", "I");
+        assertSame(field, clazz.fields.getByName("field3", null));
+
+        field.setName("renamed");
+        assertNull(clazz.fields.getByName("field3", null));
+        assertSame(field, clazz.fields.getByName("renamed", "I"));
+
+        FieldMapping other = clazz.fields.get("f4", "I");
+        other.setName("renamed");
+        assertEquals(2, clazz.fields.stream().filter(f -> f.getName().equals("renamed")).count());
+
+        clazz.fields.remove(field);
+        assertSame(other, clazz.fields.getByName("renamed", null));
+    }
+
+    @Test
+    public void iteratesOverContentsAtStart() {
+        ClassMapping clazz = createClass(3);
+        Iterator<FieldMapping> iterator = clazz.fields.iterator();
+        clazz.fields.add(new FieldMapping("f", "I", "added"));
+        clazz.fields.remove(clazz.fields.get("f0", "I"));
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+
+        assertEquals(3, count);
+        assertEquals(3, clazz.fields.size());
+        assertNotNull(clazz.fields.get("f", "I"));
+    }
+
+    @Test
+    public void removesThroughIterator() {
+        ClassMapping clazz = createClass(12);
+        clazz.fields.getByName("field0", null);
+
+        for (Iterator<FieldMapping> iterator = clazz.fields.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().obfuscatedName.endsWith("1")) {
+                iterator.remove();
+            }
+        }
+
+        assertEquals(10, clazz.fields.size());
+        assertNull(clazz.fields.get("f11", "I"));
+        assertNull(clazz.fields.getByName("field1", null));
+        assertNotNull(clazz.fields.getByName("field10", null));
+    }
+
+    @Test
+    public void weighsOnlyLoadedMembers() {
+        ClassMapping clazz = new ClassMapping("a", "net/example/A");
+        clazz.setMemberLoader(() -> createClass(5), e -> fail());
+        assertEquals(1, clazz.getLoadedSize());
+
+        clazz.nestedClasses.add(createClass(2));
+        assertEquals(9, clazz.getLoadedSize());
+    }
+}
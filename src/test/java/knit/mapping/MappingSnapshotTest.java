@@ -0,0 +1,92 @@
+package knit.mapping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappingSnapshotTest {
+    private static final String STORE = "/mappings";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static CompactMappingSet createClasses() {
+        ClassMapping clazz = new ClassMapping("a", "net/example/A");
+        clazz.comments.add(new CommentLine("A class"));
+        clazz.nestedClasses.add(new ClassMapping("b", "Inner"));
+        clazz.fields.add(new FieldMapping("c", "I", "count"));
+        MethodMapping method = new MethodMapping("d", "(La;)V", "set");
+        method.localVariables.add(new LocalVariableMapping(1, "value"));
+        clazz.methods.add(method);
+
+        Map<String, ClassMapping> classes = new HashMap<>();
+        classes.put("a", clazz);
+        classes.put("e", new ClassMapping("e", "net/example/E"));
+        return CompactMappingSet.of(classes);
+    }
+
+    @Test
+    public void readsWrittenSnapshot() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "mappings.snapshot");
+        CompactMappingSet classes = createClasses();
+        MappingSnapshot.write(file, STORE, 42, classes);
+
+        CompactMappingSet read = MappingSnapshot.read(file, STORE, 42);
+        assertNotNull(read);
+        assertEquals(2, read.size());
+        assertEquals(new String(MappingSerializer.serializeClass(classes.get("a")), StandardCharsets.UTF_8), new String(MappingSerializer.serializeClass(read.get("a")), StandardCharsets.UTF_8));
+        assertEquals("e", read.getObfuscatedName("e"));
+    }
+
+    @Test
+    public void ignoresStaleOrForeignSnapshot() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "mappings.snapshot");
+        MappingSnapshot.write(file, STORE, 42, createClasses());
+
+        assertNull(MappingSnapshot.read(file, STORE, 43));
+        assertNull(MappingSnapshot.read(file, "/other", 42));
+        assertNull(MappingSnapshot.read(new File(temporaryFolder.getRoot(), "missing.snapshot"), STORE, 42));
+    }
+
+    @Test
+    public void ignoresTruncatedOrCorruptSnapshot() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "mappings.snapshot");
+        MappingSnapshot.write(file, STORE, 42, createClasses());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        for (int length = 0; length < bytes.length; length++) {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                output.setLength(0);
+                output.write(bytes, 0, length);
+            }
+
+            assertNull("truncated to " + length, MappingSnapshot.read(file, STORE, 42));
+        }
+
+        bytes[bytes.length - 1] = (byte) 0x7F; // a string index past the pool
+        Files.write(file.toPath(), bytes);
+        assertNull(MappingSnapshot.read(file, STORE, 42));
+    }
+
+    @Test
+    public void fingerprintChangesWithFiles() throws IOException {
+        File directory = temporaryFolder.newFolder("mappings");
+        File file = new File(directory, "a.mapping");
+        Files.write(file.toPath(), "CLASS a A\n".getBytes(StandardCharsets.UTF_8));
+        long fingerprint = MappingSnapshot.fingerprint(directory);
+
+        assertEquals(fingerprint, MappingSnapshot.fingerprint(directory));
+        Files.write(file.toPath(), "CLASS a Ab\n".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(fingerprint, MappingSnapshot.fingerprint(directory));
+    }
+}